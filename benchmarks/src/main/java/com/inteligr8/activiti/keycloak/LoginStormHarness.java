@@ -0,0 +1,321 @@
+/*
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.inteligr8.activiti.keycloak;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.core.env.Environment;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.security.core.Authentication;
+
+/**
+ * This harness drives synthetic Keycloak logins through the
+ * `InterceptingAuthenticationProvider` and the `KeycloakActivitiAppAuthenticator`
+ * at increasing concurrency, against the `InMemoryApsServices` stand-ins.  It
+ * reports the throughput, the p50/p99/p999 login latency, the time the login
+ * threads spent blocked on monitors or waiting, and the number of simulated
+ * database round trips per login.
+ *
+ * The scenarios are:
+ *
+ * - `steady`: existing users log in again with unchanged roles
+ * - `storm`: every login is the first login of a new user
+ * - `churn`: existing users log in with different roles than last time
+ *
+ * Options are passed as `--name=value` arguments: `scenarios`, `threads`,
+ * `seconds`, `warmupSeconds`, `latencyMicros`, `users`, `roles` and
+ * `rolesPerUser`.  Extension properties are passed as system properties, like
+ * `-Dkeycloak-ext.syncCache.enabled=false`.
+ *
+ * Run with `java -cp target/benchmarks.jar com.inteligr8.activiti.keycloak.LoginStormHarness`.
+ *
+ * @author brian@inteligr8.com
+ */
+public class LoginStormHarness {
+
+	private static final int PROVISIONING_THREADS = 64;
+	private static final String[] DEPARTMENTS = {"sales", "finance", "legal", "ops", "hr", "it", "support", "audit"};
+
+	private final Map<String, String> options;
+	private final Environment environment = new StandardEnvironment();
+
+	public LoginStormHarness(Map<String, String> options) {
+		this.options = options;
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		Map<String, String> options = new HashMap<>();
+		for (String arg : args) {
+			int equalsPos = arg.indexOf('=');
+			if (!arg.startsWith("--") || equalsPos < 0)
+				throw new IllegalArgumentException("Options must be formatted as '--name=value': " + arg);
+			options.put(arg.substring(2, equalsPos), arg.substring(equalsPos + 1));
+		}
+
+		new LoginStormHarness(options).run();
+	}
+
+	public void run() throws InterruptedException {
+		ThreadMXBean threadMx = ManagementFactory.getThreadMXBean();
+		if (threadMx.isThreadContentionMonitoringSupported())
+			threadMx.setThreadContentionMonitoringEnabled(true);
+
+		System.out.printf("%-8s %8s %12s %9s %9s %9s %9s %10s %10s %10s %8s%n",
+				"scenario", "threads", "logins/s", "p50 ms", "p99 ms", "p999 ms", "max ms", "blocked ms", "waited ms", "calls/lgn", "errors");
+		for (String scenario : this.getOption("scenarios", "steady,storm,churn").split(",")) {
+			for (String threads : this.getOption("threads", "1,2,4,8,16,32,64,128,256").split(",")) {
+				Result result = this.run(scenario.trim(), Integer.parseInt(threads.trim()));
+				System.out.printf("%-8s %8d %12.1f %9.3f %9.3f %9.3f %9.3f %10d %10d %10.2f %8d%n",
+						scenario, result.threads, result.getThroughput(),
+						result.getPercentileMillis(0.5), result.getPercentileMillis(0.99), result.getPercentileMillis(0.999), result.getPercentileMillis(1.0),
+						result.blockedMillis, result.waitedMillis, result.getCallsPerLogin(), result.errors);
+			}
+		}
+	}
+
+	/**
+	 * Each run is against a new set of services, so runs do not affect each other.
+	 */
+	private Result run(String scenario, int threads) throws InterruptedException {
+		InMemoryApsServices services = new InMemoryApsServices(Long.parseLong(this.getOption("latencyMicros", "200")), "tenant-a");
+		LoginChain chain = new LoginChain(services, this.environment);
+		try {
+			Logins logins = this.newLogins(scenario);
+			if (!"storm".equals(scenario)) {
+				// the users of the other scenarios already logged in before
+				ExecutorService executor = Executors.newFixedThreadPool(PROVISIONING_THREADS);
+				for (int u = 0; u < logins.userCount; u++) {
+					Authentication auth = logins.newAuthentication(u, 0);
+					executor.execute(() -> chain.login(auth));
+				}
+				executor.shutdown();
+				executor.awaitTermination(1L, TimeUnit.HOURS);
+			}
+
+			this.execute(chain, logins, threads, Integer.parseInt(this.getOption("warmupSeconds", "2")), services);
+			return this.execute(chain, logins, threads, Integer.parseInt(this.getOption("seconds", "5")), services);
+		} finally {
+			chain.destroy();
+		}
+	}
+
+	private Result execute(LoginChain chain, Logins logins, int threadCount, int seconds, InMemoryApsServices services) throws InterruptedException {
+		ThreadMXBean threadMx = ManagementFactory.getThreadMXBean();
+		CountDownLatch start = new CountDownLatch(1);
+		LongAdder errors = new LongAdder();
+		AtomicLong blockedMillis = new AtomicLong();
+		AtomicLong waitedMillis = new AtomicLong();
+		long[][] latencies = new long[threadCount][];
+		int[] counts = new int[threadCount];
+
+		List<Thread> threads = new ArrayList<>(threadCount);
+		for (int t = 0; t < threadCount; t++) {
+			int threadIndex = t;
+			Thread thread = new Thread(() -> {
+				long[] threadLatencies = new long[1024];
+				int count = 0;
+				try {
+					start.await();
+				} catch (InterruptedException ie) {
+					return;
+				}
+				// the wait for the start is not contention
+				ThreadInfo startInfo = threadMx.getThreadInfo(Thread.currentThread().getId());
+
+				long endNanos = System.nanoTime() + seconds * 1000000000L;
+				while (System.nanoTime() < endNanos) {
+					Authentication auth = logins.next();
+					long startNanos = System.nanoTime();
+					try {
+						chain.login(auth);
+					} catch (RuntimeException re) {
+						errors.increment();
+					}
+
+					if (count == threadLatencies.length)
+						threadLatencies = Arrays.copyOf(threadLatencies, count * 2);
+					threadLatencies[count++] = System.nanoTime() - startNanos;
+				}
+
+				ThreadInfo info = threadMx.getThreadInfo(Thread.currentThread().getId());
+				if (info != null && startInfo != null && info.getBlockedTime() >= 0L) {
+					blockedMillis.addAndGet(info.getBlockedTime() - startInfo.getBlockedTime());
+					waitedMillis.addAndGet(info.getWaitedTime() - startInfo.getWaitedTime());
+				}
+				latencies[threadIndex] = threadLatencies;
+				counts[threadIndex] = count;
+			}, "login-storm-" + t);
+			threads.add(thread);
+			thread.start();
+		}
+
+		long callsBefore = services.getCalls();
+		long startNanos = System.nanoTime();
+		start.countDown();
+		for (Thread thread : threads)
+			thread.join();
+		long elapsedNanos = System.nanoTime() - startNanos;
+
+		int total = 0;
+		for (int count : counts)
+			total += count;
+		long[] allLatencies = new long[total];
+		int offset = 0;
+		for (int t = 0; t < threadCount; t++) {
+			System.arraycopy(latencies[t], 0, allLatencies, offset, counts[t]);
+			offset += counts[t];
+		}
+		Arrays.sort(allLatencies);
+
+		return new Result(threadCount, allLatencies, elapsedNanos, services.getCalls() - callsBefore,
+				blockedMillis.get(), waitedMillis.get(), errors.sum());
+	}
+
+	private Logins newLogins(String scenario) {
+		int userCount = Integer.parseInt(this.getOption("users", "10000"));
+		int roleCount = Integer.parseInt(this.getOption("roles", "200"));
+		int rolesPerUser = Integer.parseInt(this.getOption("rolesPerUser", "10"));
+
+		switch (scenario) {
+			case "steady":
+				return new Logins(userCount, roleCount, rolesPerUser, false, false);
+			case "storm":
+				return new Logins(userCount, roleCount, rolesPerUser, true, false);
+			case "churn":
+				return new Logins(userCount, roleCount, rolesPerUser, false, true);
+			default:
+				throw new IllegalArgumentException("Unknown scenario: " + scenario);
+		}
+	}
+
+	private String getOption(String name, String defaultValue) {
+		return this.options.getOrDefault(name, defaultValue);
+	}
+
+
+
+	/**
+	 * The synthetic logins of a scenario.  The tokens of existing users are
+	 * built in advance, so building them is not measured; the tokens of new
+	 * users are built on demand.
+	 */
+	private static class Logins {
+
+		private final int userCount;
+		private final int roleCount;
+		private final int rolesPerUser;
+		private final boolean newUsers;
+		private final Authentication[][] authentications;
+		private final AtomicLong newUserSequence = new AtomicLong();
+
+		/**
+		 * @param newUsers true if every login is by a new user
+		 * @param churn true if the roles of a user are different on every login
+		 */
+		Logins(int userCount, int roleCount, int rolesPerUser, boolean newUsers, boolean churn) {
+			this.userCount = userCount;
+			this.roleCount = roleCount;
+			this.rolesPerUser = rolesPerUser;
+			this.newUsers = newUsers;
+
+			if (newUsers) {
+				this.authentications = null;
+			} else {
+				this.authentications = new Authentication[userCount][churn ? 4 : 1];
+				for (int u = 0; u < userCount; u++)
+					for (int v = 0; v < this.authentications[u].length; v++)
+						this.authentications[u][v] = this.newAuthentication(u, v);
+			}
+		}
+
+		Authentication next() {
+			if (this.newUsers)
+				return this.newAuthentication(this.userCount + this.newUserSequence.getAndIncrement(), 0);
+
+			// a different variant than last time is likely, but not guaranteed
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			Authentication[] variants = this.authentications[random.nextInt(this.userCount)];
+			return variants[random.nextInt(variants.length)];
+		}
+
+		/**
+		 * @param variant Which of the role sets of the user
+		 */
+		Authentication newAuthentication(long user, int variant) {
+			Random random = new Random(user * 31L + variant);
+			List<String> roles = new ArrayList<>(this.rolesPerUser);
+			for (int r = 0; r < this.rolesPerUser; r++) {
+				int role = random.nextInt(this.roleCount);
+				roles.add("dept_" + DEPARTMENTS[role % DEPARTMENTS.length] + "_" + role);
+			}
+
+			return LoginChain.newAuthentication("user" + user + ".harness@example.com", "User" + user, "Harness", roles);
+		}
+
+	}
+
+	private static class Result {
+
+		private final int threads;
+		private final long[] sortedLatencies;
+		private final long elapsedNanos;
+		private final long calls;
+		private final long blockedMillis;
+		private final long waitedMillis;
+		private final long errors;
+
+		Result(int threads, long[] sortedLatencies, long elapsedNanos, long calls, long blockedMillis, long waitedMillis, long errors) {
+			this.threads = threads;
+			this.sortedLatencies = sortedLatencies;
+			this.elapsedNanos = elapsedNanos;
+			this.calls = calls;
+			this.blockedMillis = blockedMillis;
+			this.waitedMillis = waitedMillis;
+			this.errors = errors;
+		}
+
+		double getThroughput() {
+			return this.sortedLatencies.length * 1e9 / this.elapsedNanos;
+		}
+
+		double getCallsPerLogin() {
+			return this.sortedLatencies.length == 0 ? 0.0 : (double)this.calls / this.sortedLatencies.length;
+		}
+
+		double getPercentileMillis(double percentile) {
+			if (this.sortedLatencies.length == 0)
+				return 0.0;
+			int index = (int)Math.ceil(percentile * this.sortedLatencies.length) - 1;
+			return this.sortedLatencies[Math.max(0, index)] / 1e6;
+		}
+
+	}
+
+}
@@ -0,0 +1,91 @@
+/*
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.inteligr8.activiti.keycloak;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.inteligr8.activiti.GroupRef;
+
+/**
+ * This benchmarks the membership diff of a user in many groups.  Half of the
+ * user's groups still have a corresponding role; the other half are to be
+ * removed.  About as many roles again are new.
+ *
+ * The `scanDiff` benchmark reproduces the previous approach, which scanned
+ * the whole role map for every group.
+ *
+ * @author brian@inteligr8.com
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MembershipPlannerBenchmark {
+
+	@Param({"10", "100", "1000", "5000"})
+	public int groupCount;
+
+	private final MembershipPlanner planner = new MembershipPlanner("ais", false);
+	private RoleMappingBenchmark.BenchmarkAuthenticator authenticator;
+	private List<GroupRef> groups;
+	private Map<String, String> roles;
+
+	@Setup
+	public void setup() {
+		this.authenticator = RoleMappingBenchmark.newAuthenticator(0);
+		this.groups = new ArrayList<>(this.groupCount);
+		this.roles = new HashMap<>();
+
+		for (int i = 0; i < this.groupCount; i++) {
+			String role = "app_sales_" + i;
+			this.groups.add(new GroupRef((long)i, "sales-" + i, this.planner.toExternalId("sales-" + i), 1L, 1, null));
+			if (i % 2 == 0)
+				this.roles.put(role, "sales-" + i);
+			this.roles.put("app_finance_" + i, "finance-" + i);
+		}
+	}
+
+	@Benchmark
+	public MembershipPlanner.Plan plan() {
+		return this.planner.plan(this.groups, this.roles, 1L);
+	}
+
+	@Benchmark
+	public Map<String, String> scanDiff() {
+		Map<String, String> roles = new HashMap<>(this.roles);
+		for (GroupRef group : this.groups)
+			this.authenticator.removeMapEntriesByValue(roles, this.planner.fromExternalId(group.getExternalId()));
+		return roles;
+	}
+
+}
@@ -0,0 +1,235 @@
+/*
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.inteligr8.activiti.keycloak;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.keycloak.KeycloakSecurityContext;
+import org.keycloak.representations.AccessToken;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import org.springframework.security.core.Authentication;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * This benchmarks the role extraction and mapping pipeline of the
+ * authenticator against synthetic access tokens.  Each token carries the
+ * parameterized number of realm roles and about as many resource roles,
+ * spread across several clients; half of which are excluded.
+ *
+ * A `memoSize` of `0` disables the role mapping memo, measuring the cost of
+ * evaluating every rule on every login.
+ *
+ * `getKeycloakRoles` measures the roles read from the parsed token;
+ * `getKeycloakRolesStreaming` measures them read from the raw token.
+ *
+ * Run with `java -jar target/benchmarks.jar RoleMappingBenchmark -prof gc`
+ * or just execute this class, which always includes the GC profiler.
+ *
+ * @author brian@inteligr8.com
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoleMappingBenchmark {
+
+	static final String RESOURCE_INCLUDES = "aps-.*,activiti-.*";
+	static final String INCLUDES = "app_.*,dept_.*,grp-[a-z]+-[0-9]+";
+	static final String EXCLUDES = "default-roles-.*,offline_access,uma_authorization,.*_deprecated";
+	static final String FORMAT_PATTERNS = "app_([a-z]+)_([0-9]+),dept_([a-z]+)_(.*),grp-([a-z]+)-([0-9]+)";
+	static final String FORMAT_REPLACEMENTS = "$1-$2,Dept $1: $2,$1 group $2";
+
+	private static final String[] WORDS = {"sales", "finance", "legal", "ops", "hr", "it", "support", "audit"};
+
+	@Param({"10", "100", "1000", "10000"})
+	public int roleCount;
+
+	@Param({"0", "50000"})
+	public int memoSize;
+
+	private BenchmarkAuthenticator authenticator;
+	private Authentication auth;
+	private Authentication rawAuth;
+	private Set<String> realmRoles;
+	private Collection<String> filteredRoles;
+	private List<String> resources;
+	private Map<String, String> mappedRoles;
+	private String removableValue;
+
+	@Setup
+	public void setup() {
+		this.authenticator = newAuthenticator(this.memoSize);
+
+		Random random = new Random(this.roleCount);
+		AccessToken atoken = newAccessToken(this.roleCount, random);
+		this.auth = new TestingAuthenticationToken("user@example.com", new KeycloakSecurityContext(null, atoken, null, null));
+		this.rawAuth = new TestingAuthenticationToken("user@example.com", new KeycloakSecurityContext(newTokenString(atoken), atoken, null, null));
+
+		this.realmRoles = atoken.getRealmAccess().getRoles();
+		this.resources = new ArrayList<>(atoken.getResourceAccess().keySet());
+		this.filteredRoles = this.authenticator.filterRoles(this.realmRoles);
+		this.mappedRoles = this.authenticator.getKeycloakRoles(this.auth);
+		this.removableValue = this.mappedRoles.isEmpty() ? "none" : this.mappedRoles.values().iterator().next();
+	}
+
+	@Benchmark
+	public Map<String, String> getKeycloakRoles() {
+		return this.authenticator.getKeycloakRoles(this.auth);
+	}
+
+	@Benchmark
+	public Map<String, String> getKeycloakRolesStreaming() {
+		return this.authenticator.getKeycloakRoles(this.rawAuth);
+	}
+
+	@Benchmark
+	public Collection<String> filterRoles() {
+		return this.authenticator.filterRoles(this.realmRoles);
+	}
+
+	@Benchmark
+	public Map<String, String> formatRoles() {
+		return this.authenticator.formatRoles(this.filteredRoles);
+	}
+
+	@Benchmark
+	public void includeResource(Blackhole blackhole) {
+		for (String resource : this.resources)
+			blackhole.consume(this.authenticator.includeResource(resource));
+	}
+
+	/**
+	 * The copy is included in the measurement, as the method mutates the map.
+	 */
+	@Benchmark
+	public boolean removeMapEntriesByValue() {
+		Map<String, String> roles = new HashMap<>(this.mappedRoles);
+		return this.authenticator.removeMapEntriesByValue(roles, this.removableValue);
+	}
+
+	static BenchmarkAuthenticator newAuthenticator(int memoSize) {
+		BenchmarkAuthenticator authenticator = new BenchmarkAuthenticator();
+		authenticator.resourceRegexIncludes = RESOURCE_INCLUDES;
+		authenticator.regexIncludes = INCLUDES;
+		authenticator.regexExcludes = EXCLUDES;
+		authenticator.regexPatterns = FORMAT_PATTERNS;
+		authenticator.regexReplacements = FORMAT_REPLACEMENTS;
+		authenticator.roleMappingCacheMaxSize = memoSize;
+		authenticator.tokenStreamingMinLength = 0;
+		authenticator.afterPropertiesSet();
+		return authenticator;
+	}
+
+	/**
+	 * @param roleCount The number of realm roles; about the same number of resource roles are added
+	 */
+	static AccessToken newAccessToken(int roleCount, Random random) {
+		AccessToken atoken = new AccessToken();
+
+		AccessToken.Access realmAccess = new AccessToken.Access();
+		realmAccess.addRole("offline_access", "uma_authorization", "default-roles-example");
+		for (int i = 0; i < roleCount; i++)
+			realmAccess.addRole(newRole(i, random));
+		atoken.setRealmAccess(realmAccess);
+
+		int clients = Math.max(2, roleCount / 50);
+		for (int c = 0; c < clients; c++) {
+			// half of the clients are not included
+			String client = (c % 2 == 0 ? "aps-client-" : "other-client-") + c;
+			AccessToken.Access resourceAccess = atoken.addAccess(client);
+			for (int i = 0; i < roleCount / clients; i++)
+				resourceAccess.addRole(newRole(roleCount + c * roleCount + i, random));
+		}
+
+		return atoken;
+	}
+
+	/**
+	 * @return An unsigned JWS compact serialization of the token
+	 */
+	static String newTokenString(AccessToken atoken) {
+		try {
+			Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+			return encoder.encodeToString("{\"alg\":\"none\"}".getBytes(StandardCharsets.UTF_8)) + "." +
+					encoder.encodeToString(new ObjectMapper().writeValueAsBytes(atoken)) + ".";
+		} catch (JsonProcessingException jpe) {
+			throw new IllegalStateException(jpe);
+		}
+	}
+
+	private static String newRole(int i, Random random) {
+		String word = WORDS[random.nextInt(WORDS.length)];
+		switch (random.nextInt(10)) {
+			case 0:
+			case 1:
+			case 2:
+			case 3:
+				return "app_" + word + "_" + i;
+			case 4:
+			case 5:
+			case 6:
+				return "dept_" + word + "_" + i;
+			case 7:
+			case 8:
+				return "grp-" + word + "-" + i;
+			default:
+				return "misc_" + word + "_" + i + (random.nextBoolean() ? "_deprecated" : "");
+		}
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder()
+				.include(RoleMappingBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+
+
+
+	static class BenchmarkAuthenticator extends AbstractKeycloakActivitiAuthenticator {
+	}
+
+}
@@ -30,7 +30,6 @@ import org.springframework.stereotype.Component;
 
 import com.activiti.domain.idm.Group;
 import com.activiti.domain.idm.GroupCapability;
-import com.activiti.domain.idm.Tenant;
 import com.activiti.service.api.GroupService;
 
 /**
@@ -38,6 +37,9 @@ import com.activiti.service.api.GroupService;
  * be used if your OAuth configuration leaves you without any administrative
  * groups.
  * 
+ * It is not checkpointed, as proving the capabilities were not revoked since
+ * takes the same query as checking them.
+ * 
  * @author brian@inteligr8.com
  */
 @Component
@@ -60,6 +62,12 @@ public class ActivitiAppAdminGroupFixer implements DataFixer {
     @Autowired
     private TenantFinderService tenantFinderService;
     
+    @Autowired
+    private GroupDirectory groupDirectory;
+    
+    @Autowired
+    private MultiTenantExecutor tenantExecutor;
+    
     @Value("${keycloak-ext.group.admins.name:admins}")
     private String adminGroupName;
     
@@ -83,48 +91,55 @@ public class ActivitiAppAdminGroupFixer implements DataFixer {
 		if (this.groupService == null)
 			return;
 		
-		Collection<Tenant> tenants = this.tenantFinderService.getTenants();
-		for (Tenant tenant : tenants) {
-			this.logger.trace("Tenant: {} => {}", tenant.getId(), tenant.getName());
-			this.logger.trace("Functional groups: {}", this.toGroupNames(this.groupService.getFunctionalGroups(tenant.getId())));
-			this.logger.trace("System groups: {}", this.toGroupNames(this.groupService.getSystemGroups(tenant.getId())));
-		}
+		Collection<TenantRef> tenants = this.tenantFinderService.getTenantRefs();
+		List<Long> tenantIds = new ArrayList<>(tenants.size() + 1);
+		for (TenantRef tenant : tenants)
+			tenantIds.add(tenant.getId());
+		tenantIds.add(null);
 		
-		this.logger.trace("Tenant: null");
-		this.logger.trace("Functional groups: {}", this.toGroupNames(this.groupService.getFunctionalGroups(null)));
-		this.logger.trace("System groups: {}", this.toGroupNames(this.groupService.getSystemGroups(null)));
+		// one log entry per tenant, so concurrent tenants do not interleave
+		this.tenantExecutor.execute("group logging", tenantIds, tenantId -> this.logger.trace("Tenant: {}; functional groups: {}; system groups: {}",
+				tenantId,
+				this.toGroupNames(this.groupService.getFunctionalGroups(tenantId)),
+				this.toGroupNames(this.groupService.getSystemGroups(tenantId))));
 	}
 	
 	private void validateAdmins() {
 		if (this.groupService == null)
 			return;
 		
-    	Long tenantId = this.tenantFinderService.findTenantId();
-		Group group = this.groupService.getGroupByExternalIdAndTenantId(this.adminGroupExternalId, tenantId);
-		if (group == null) {
-			List<Group> groups = this.groupService.getGroupByNameAndTenantId(this.adminGroupName, tenantId);
-			if (!groups.isEmpty())
-				group = groups.iterator().next();
-		}
+		this.tenantExecutor.execute("admin group validation", this::validateAdmins);
+	}
+	
+	private void validateAdmins(Long tenantId) {
+    	Long groupId = null;
+		List<GroupRef> groups = this.groupDirectory.findGroupsByExternalId(this.adminGroupExternalId, tenantId);
+		if (groups.isEmpty())
+			groups = this.groupDirectory.findGroupsByName(this.adminGroupName, tenantId);
+		if (!groups.isEmpty())
+			groupId = groups.iterator().next().getId();
 
-		if (group == null) {
+		if (groupId == null) {
 			this.logger.info("Creating group: {} ({})", this.adminGroupName, this.adminGroupExternalId);
+			Group group;
 			if (this.adminGroupExternalId != null) {
 				group = this.groupService.createGroupFromExternalStore(
 						this.adminGroupExternalId, tenantId, Group.TYPE_SYSTEM_GROUP, null, this.adminGroupName, new Date());
 			} else {
 				group = this.groupService.createGroup(this.adminGroupName, tenantId, Group.TYPE_SYSTEM_GROUP, null);
 			}
+			this.groupDirectory.register(group);
+			groupId = group.getId();
 		}
 
-		this.logger.debug("Checking group capabilities: {}", group.getName());
-		Group groupWithCaps = this.groupService.getGroup(group.getId(), false, true, false, false);
+		Group groupWithCaps = this.groupService.getGroup(groupId, false, true, false, false);
+		this.logger.debug("Checking group capabilities: {}", groupWithCaps.getName());
 		Set<String> adminCaps = new HashSet<>(this.adminCapabilities);
 		for (GroupCapability cap : groupWithCaps.getCapabilities())
 			adminCaps.remove(cap.getName());
 		if (!adminCaps.isEmpty()) {
-			this.logger.info("Granting group '{}' capabilities: {}", group.getName(), adminCaps);
-			this.groupService.addCapabilitiesToGroup(group.getId(), new ArrayList<>(adminCaps));
+			this.logger.info("Granting group '{}' capabilities: {}", groupWithCaps.getName(), adminCaps);
+			this.groupService.addCapabilitiesToGroup(groupId, new ArrayList<>(adminCaps));
 		}
 	}
 	
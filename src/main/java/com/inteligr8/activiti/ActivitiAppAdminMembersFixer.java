@@ -14,10 +14,13 @@
  */
 package com.inteligr8.activiti;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
-
-import javax.persistence.NonUniqueResultException;
+import java.util.Map;
+import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,6 +38,10 @@ import com.activiti.service.api.UserService;
  * in APS.  This may be used if you are accidentally left without anyone with
  * administrative access.
  * 
+ * It is not checkpointed, as proving the memberships were not removed since
+ * takes the same queries as checking them; only missing memberships are
+ * written.
+ * 
  * @author brian@inteligr8.com
  */
 @Component
@@ -49,7 +56,16 @@ public class ActivitiAppAdminMembersFixer implements DataFixer {
     private GroupService groupService;
     
     @Autowired
-    private TenantFinderService tenantFinderService;
+    private GroupDirectory groupDirectory;
+    
+    @Autowired
+    private MultiTenantExecutor tenantExecutor;
+    
+    @Autowired
+    private UserFinderService userFinderService;
+    
+    @Autowired
+    private TransactionExecutor transactionExecutor;
     
     @Value("${keycloak-ext.default.admins.users:#{null}}")
     private String adminUserStrs;
@@ -60,6 +76,12 @@ public class ActivitiAppAdminMembersFixer implements DataFixer {
     @Value("${keycloak-ext.group.admins.externalId:#{null}}")
     private String adminGroupExternalId;
     
+    @Override
+    public Collection<Class<? extends DataFixer>> getDependencies() {
+    	// the admin group may need to be created first
+    	return Collections.singleton(ActivitiAppAdminGroupFixer.class);
+    }
+    
     @Override
 	public void fix() {
 		this.logger.trace("fix()");
@@ -75,31 +97,47 @@ public class ActivitiAppAdminMembersFixer implements DataFixer {
 		List<String> adminUsers = Arrays.asList(this.adminUserStrs.split(","));
 		if (adminUsers.isEmpty())
 			return;
-
-    	Long tenantId = this.tenantFinderService.findTenantId();
-    	List<Group> groups = null;
-    	try {
-			Group group1 = this.groupService.getGroupByExternalIdAndTenantId(this.adminGroupExternalId, tenantId);
-			if (group1 != null)
-				groups = Arrays.asList(group1);
-    	} catch (NonUniqueResultException nure) {
-    		// suppress
-    	}
-		if (groups == null)
-			groups = this.groupService.getGroupByNameAndTenantId(this.adminGroupName, tenantId);
 		
-		this.logger.debug("Found {} admin group(s)", groups.size());
+		this.tenantExecutor.execute("admin group membership", tenantId -> this.associateAdmins(adminUsers, tenantId));
+	}
+	
+	private void associateAdmins(List<String> adminUsers, Long tenantId) {
+    	List<GroupRef> groupRefs = this.groupDirectory.findGroupsByExternalId(this.adminGroupExternalId, tenantId);
+    	if (groupRefs.size() != 1)
+    		groupRefs = this.groupDirectory.findGroupsByName(this.adminGroupName, tenantId);
+    	
+    	List<Long> groupIds = new ArrayList<>(groupRefs.size());
+    	for (GroupRef groupRef : groupRefs)
+    		groupIds.add(groupRef.getId());
+		this.logger.debug("Found {} admin group(s)", groupIds.size());
 		
+		Map<String, User> users = this.userFinderService.findUsersByEmails(adminUsers, tenantId);
 		for (String email : adminUsers) {
-    		User user = this.userService.findUserByEmailAndTenantId(email, tenantId);
-    		if (user == null) {
+    		if (!users.containsKey(email.toLowerCase()))
     			this.logger.info("The user with email '{}' does not exist, so they cannot be added as an administrator", email);
-    		} else {
-	    		this.logger.debug("Adding {} to admin group(s)", user.getEmail());
-	    		for (Group group : groups)
-	    			this.groupService.addUserToGroup(group, user);
-    		}
 		}
+		
+		List<Long> userIds = new ArrayList<>(users.size());
+		for (User user : users.values())
+			userIds.add(user.getId());
+		Map<Long, Set<Long>> members = this.userFinderService.findMembers(groupIds, userIds);
+		
+		// only add the missing memberships, all in one transaction
+		this.transactionExecutor.execute(() -> {
+			for (Long groupId : groupIds) {
+				Set<Long> memberIds = members.getOrDefault(groupId, Collections.emptySet());
+				Group group = null;
+				for (User user : users.values()) {
+					if (memberIds.contains(user.getId()))
+						continue;
+					
+					if (group == null)
+						group = this.groupService.getGroup(groupId);
+		    		this.logger.debug("Adding {} to admin group: {}", user.getEmail(), group.getName());
+	    			this.groupService.addUserToGroup(group, user);
+				}
+			}
+		});
 	}
 
 }
@@ -14,6 +14,13 @@
  */
 package com.inteligr8.activiti;
 
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -26,6 +33,10 @@ import com.activiti.service.api.UserService;
 /**
  * This class/bean attempts to reset the configured user's password.
  * 
+ * With checkpoints enabled, the password is only reset when the configured
+ * password or the stored password changed since the last reset.  The
+ * configured password is never stored; only a slow, salted derivation of it.
+ * 
  * @author brian@inteligr8.com
  */
 @Component
@@ -38,6 +49,9 @@ public class ActivitiAppAdminPasswordFixer implements DataFixer {
     
     @Autowired
     private TenantFinderService tenantFinderService;
+    
+    @Autowired
+    private FixerCheckpoints checkpoints;
 
     @Value("${keycloak-ext.reset.admin.username:admin@app.activiti.com}")
     private String adminUsername;
@@ -54,7 +68,41 @@ public class ActivitiAppAdminPasswordFixer implements DataFixer {
 			
 			Long tenantId = this.tenantFinderService.findTenantId();
 			User adminUser = this.userService.findUserByEmailAndTenantId(this.adminUsername, tenantId);
+			if (this.checkpoints.isUnchanged(this.getClass().getSimpleName(), this.fingerprint(adminUser, tenantId))) {
+				this.logger.debug("The password of admin user '{}' was already reset", this.adminUsername);
+				return;
+			}
+			
 			this.userService.changePassword(adminUser.getId(), this.adminPassword);
+			
+			if (this.checkpoints.isEnabled()) {
+				// the stored password changed, so fetch it again
+				adminUser = this.userService.findUserByEmailAndTenantId(this.adminUsername, tenantId);
+				this.checkpoints.record(this.getClass().getSimpleName(), this.fingerprint(adminUser, tenantId));
+			}
+		}
+	}
+	
+	private String fingerprint(User adminUser, Long tenantId) {
+		if (!this.checkpoints.isEnabled())
+			return "";
+		
+		return this.checkpoints.fingerprint(this.adminUsername, tenantId, adminUser.getId(), adminUser.getPassword(),
+				this.derivePassword(adminUser));
+	}
+	
+	/**
+	 * The stored password is the salt, so the derivation is useless once the
+	 * stored password changes.
+	 */
+	private String derivePassword(User adminUser) {
+		byte[] salt = (adminUser.getId() + ":" + adminUser.getPassword()).getBytes(StandardCharsets.UTF_8);
+		try {
+			SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+			byte[] key = factory.generateSecret(new PBEKeySpec(this.adminPassword.toCharArray(), salt, 10000, 256)).getEncoded();
+			return Base64.getEncoder().encodeToString(key);
+		} catch (GeneralSecurityException gse) {
+			throw new IllegalStateException(gse);
 		}
 	}
 
@@ -0,0 +1,212 @@
+/*
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.inteligr8.activiti;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationContext;
+import org.springframework.stereotype.Component;
+
+/**
+ * This class/bean keeps the in-memory caches of each node of a cluster
+ * coherent, using the database as the only shared resource.
+ * 
+ * The latest `lastUpdate` of the groups in each tenant serves as the version
+ * of its groups; polled with one small aggregate query.  When a version
+ * advances, the groups of only that tenant are incrementally refreshed.
+ * 
+ * The users are polled with one range query for the users updated since the
+ * latest update already seen; a watermark taken from the database, not from
+ * the clock of this node.  Only those users are forgotten.  As the
+ * `lastUpdate` is set by the clock of the node making the change, before its
+ * transaction commits, an update may become visible after later ones were
+ * already seen; so each poll reaches back a configurable overlap before the
+ * watermark.  The updates seen within that overlap are remembered, so they
+ * are not reported twice; an update committed later than the overlap is
+ * only noticed when the user's caches expire.  This extension
+ * updates the `lastUpdate` of a user whenever it changes their group
+ * memberships, so those changes are noticed too.  An index on the
+ * `last_update` column of the users table keeps this query from scanning the
+ * table.
+ * 
+ * A tenant not yet known to the `TenantFinderService` causes it to reload
+ * the tenants.
+ * 
+ * Each `TenantCacheListener` bean is told of the changes.  Changes made by
+ * this node are noticed too, which at most costs one lookup.
+ * 
+ * @author brian@inteligr8.com
+ */
+@Component
+public class ClusterCoherence implements InitializingBean, DisposableBean {
+	
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    
+    @Autowired
+    private ApplicationContext applicationContext;
+    
+    @Autowired
+    private TenantFinderService tenantFinderService;
+    
+    @Autowired
+    private UserFinderService userFinderService;
+    
+    @Autowired
+    private GroupFinderService groupFinderService;
+    
+    @Value("${keycloak-ext.cluster.pollSeconds:30}")
+    private long pollSeconds;
+    
+    @Value("${keycloak-ext.cluster.skewMillis:10000}")
+    private long skewMillis;
+    
+    private Map<Long, Date> groupVersions;
+    private Date userWatermark;
+    /** the update of each user already seen within the overlap, by tenant and email */
+    private final Map<String, Date> userOverlapUpdates = new HashMap<>();
+    private ScheduledExecutorService scheduler;
+    
+    @Override
+    public void afterPropertiesSet() {
+    	if (this.pollSeconds <= 0L)
+    		return;
+    	
+    	this.logger.info("Polling for changes from other nodes every {} seconds", this.pollSeconds);
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "keycloak-ext-coherence");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.scheduler.scheduleWithFixedDelay(this::poll, this.pollSeconds, this.pollSeconds, TimeUnit.SECONDS);
+    }
+    
+    @Override
+    public void destroy() {
+    	if (this.scheduler != null)
+    		this.scheduler.shutdownNow();
+    }
+    
+    /**
+     * This method compares the version of each tenant with the previous poll
+     * and notifies the listeners of the tenants that changed.  The first poll
+     * only records the versions.
+     */
+    public synchronized void poll() {
+    	try {
+	    	Map<Long, Date> groupVersions = this.groupFinderService.findLastUpdates();
+	    	
+	    	if (this.groupVersions == null) {
+	    		this.userWatermark = this.userFinderService.findLastUpdate();
+	    		// the updates already within the overlap are older than the caches of this node
+	    		this.pollUsers();
+	    	} else {
+	    		Collection<TenantCacheListener> listeners = this.applicationContext.getBeansOfType(TenantCacheListener.class).values();
+	    		Set<Long> changedTenantIds = new HashSet<>();
+	    		
+	    		for (Entry<Long, Date> version : groupVersions.entrySet()) {
+	    			if (this.isAdvanced(this.groupVersions.get(version.getKey()), version.getValue())) {
+	    				this.logger.debug("The groups of tenant {} changed", version.getKey());
+	    				changedTenantIds.add(version.getKey());
+	    				for (TenantCacheListener listener : listeners)
+	    					listener.onGroupsChanged(version.getKey());
+	    			}
+	    		}
+	    		
+	    		for (Entry<Long, List<String>> emails : this.pollUsers().entrySet()) {
+	    			this.logger.debug("The users of tenant {} changed: {}", emails.getKey(), emails.getValue());
+	    			changedTenantIds.add(emails.getKey());
+	    			for (TenantCacheListener listener : listeners)
+	    				listener.onUsersChanged(emails.getKey(), emails.getValue());
+	    		}
+	    		
+	    		this.checkTenants(changedTenantIds);
+	    	}
+	    	
+	    	this.groupVersions = groupVersions;
+    	} catch (RuntimeException re) {
+    		this.logger.warn("Unable to poll for changes from other nodes; trying again later", re);
+    	}
+    }
+    
+    /**
+     * The users updated within the overlap before the watermark are queried
+     * again, in case of late commits or skewed clocks; the updates already
+     * seen are not reported again.
+     * 
+     * @return A map of tenant IDs to the email addresses of their changed users
+     */
+    private Map<Long, List<String>> pollUsers() {
+    	Map<Long, List<String>> changedEmails = new HashMap<>();
+    	Date watermark = this.userWatermark;
+    	Date since = watermark == null ? null : new Date(watermark.getTime() - Math.max(0L, this.skewMillis));
+    	
+    	for (UserUpdate update : this.userFinderService.findUpdatesSince(since)) {
+    		if (update.getLastUpdate() == null)
+    			continue;
+    		
+    		String key = update.getTenantId() + "/" + update.getEmail();
+    		if (update.getLastUpdate().equals(this.userOverlapUpdates.put(key, update.getLastUpdate())))
+    			continue;
+    		changedEmails.computeIfAbsent(update.getTenantId(), tenantId -> new ArrayList<>()).add(update.getEmail());
+    		
+    		if (watermark == null || update.getLastUpdate().after(watermark))
+    			watermark = update.getLastUpdate();
+    	}
+    	
+    	this.userWatermark = watermark;
+    	if (watermark != null) {
+    		// only the updates within the next overlap can be queried again
+    		long overlapStart = watermark.getTime() - Math.max(0L, this.skewMillis);
+    		this.userOverlapUpdates.values().removeIf(lastUpdate -> lastUpdate.getTime() < overlapStart);
+    	}
+    	return changedEmails;
+    }
+    
+    private boolean isAdvanced(Date previousVersion, Date version) {
+    	return version != null && (previousVersion == null || version.after(previousVersion));
+    }
+    
+    private void checkTenants(Set<Long> changedTenantIds) {
+    	changedTenantIds.remove(null);
+    	if (changedTenantIds.isEmpty())
+    		return;
+    	
+    	for (TenantRef tenant : this.tenantFinderService.getTenantRefs())
+    		changedTenantIds.remove(tenant.getId());
+    	
+    	if (!changedTenantIds.isEmpty()) {
+    		this.logger.debug("Found unknown tenants; reloading the tenants: {}", changedTenantIds);
+    		this.tenantFinderService.invalidate();
+    	}
+    }
+    
+}
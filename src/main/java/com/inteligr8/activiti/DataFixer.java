@@ -14,6 +14,9 @@
  */
 package com.inteligr8.activiti;
 
+import java.util.Collection;
+import java.util.Collections;
+
 /**
  * This interface is for defining utilities that provide data-based fixes to
  * APS deployments.
@@ -27,5 +30,23 @@ public interface DataFixer {
 	 * will be called only on startup; and on every startup.
 	 */
 	void fix();
+	
+	/**
+	 * A deferrable fix may still be executing after the security
+	 * configuration is built, when deferral is enabled.  Until it completes,
+	 * the fixers are not considered ready.
+	 * 
+	 * @return true if the fix is not needed before the application accepts logins; false otherwise
+	 */
+	default boolean isDeferrable() {
+		return false;
+	}
+	
+	/**
+	 * @return The types of fixers that must complete before this one starts; never null
+	 */
+	default Collection<Class<? extends DataFixer>> getDependencies() {
+		return Collections.emptySet();
+	}
 
 }
@@ -0,0 +1,207 @@
+/*
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.inteligr8.activiti;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.inteligr8.activiti.metrics.MetricsService;
+
+/**
+ * This class/bean executes the data fixers on startup.  By default, they are
+ * executed one after another on the calling thread, in the order of their
+ * dependencies.
+ * 
+ * With a parallelism above 1, independent fixers are executed concurrently
+ * on a bounded pool; a fixer starts as soon as all of its dependencies
+ * complete.  When deferral is enabled, deferrable fixers may complete after
+ * this returns; logins are accepted in the meantime, as deferrable fixers
+ * are not needed by them.  Their completion is logged; `isReady()` tells
+ * when all fixers are done, successfully or not.
+ * 
+ * A fixer is skipped when one of its dependencies fails.  The failure of a
+ * fixer that is not deferred fails the startup, as it always has.
+ * 
+ * @author brian@inteligr8.com
+ */
+@Component
+public class DataFixerExecutor {
+	
+	private static final String METRIC_PREFIX = "keycloak-ext.fixer.";
+	
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    
+    @Autowired
+    private MetricsService metrics;
+    
+    @Value("${keycloak-ext.fixers.parallelism:1}")
+    private int parallelism;
+    
+    @Value("${keycloak-ext.fixers.defer:false}")
+    private boolean deferEnabled;
+    
+    private final Map<String, Long> timings = Collections.synchronizedMap(new LinkedHashMap<>());
+    private volatile CompletableFuture<Void> ready = CompletableFuture.completedFuture(null);
+    
+    /**
+     * @return true if all fixers have completed, successfully or not; false if any are still executing
+     */
+    public boolean isReady() {
+    	return this.ready.isDone();
+    }
+    
+    /**
+     * @return true if all fixers completed within the specified time; false otherwise
+     */
+    public boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException {
+    	try {
+    		this.ready.get(timeout, unit);
+    		return true;
+    	} catch (ExecutionException | TimeoutException e) {
+    		return this.ready.isDone();
+    	}
+    }
+    
+    /**
+     * @return The wall time of each completed fixer, in milliseconds, in order of completion
+     */
+    public Map<String, Long> getTimings() {
+    	synchronized (this.timings) {
+    		return new LinkedHashMap<>(this.timings);
+    	}
+    }
+    
+    public void execute(List<DataFixer> fixers) {
+    	List<DataFixer> orderedFixers = this.sort(fixers);
+    	
+    	if (this.parallelism <= 1 && !this.deferEnabled) {
+    		for (DataFixer fixer : orderedFixers)
+    			this.executeTimed(fixer);
+    		return;
+    	}
+    	
+    	AtomicInteger threadCount = new AtomicInteger();
+    	ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, this.parallelism), runnable -> {
+			Thread thread = new Thread(runnable, "keycloak-ext-fixer-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+    	});
+    	
+    	Map<DataFixer, CompletableFuture<Void>> futures = new HashMap<>();
+    	List<CompletableFuture<Void>> blocking = new ArrayList<>();
+    	for (DataFixer fixer : orderedFixers) {
+    		List<CompletableFuture<Void>> depFutures = new ArrayList<>();
+    		for (DataFixer dep : this.findDependencies(fixer, orderedFixers))
+    			depFutures.add(futures.get(dep));
+    		
+    		CompletableFuture<Void> future = CompletableFuture.allOf(depFutures.toArray(new CompletableFuture[depFutures.size()]))
+    				.thenRunAsync(() -> this.executeTimed(fixer), executor);
+    		futures.put(fixer, future);
+    		
+    		if (!this.deferEnabled || !fixer.isDeferrable())
+    			blocking.add(future);
+    	}
+    	
+    	CompletableFuture<Void> all = CompletableFuture.allOf(futures.values().toArray(new CompletableFuture[futures.size()]));
+    	this.ready = all.handle((result, e) -> {
+    		executor.shutdown();
+    		if (e != null) {
+    			this.logger.error("At least one data fixer failed", e);
+    		} else {
+    			this.logger.info("All data fixers completed");
+    		}
+    		return null;
+    	});
+    	
+    	try {
+    		CompletableFuture.allOf(blocking.toArray(new CompletableFuture[blocking.size()])).join();
+    	} catch (CompletionException ce) {
+    		if (ce.getCause() instanceof RuntimeException)
+    			throw (RuntimeException)ce.getCause();
+    		throw ce;
+    	}
+    	
+    	if (!this.ready.isDone())
+    		this.logger.info("Continuing startup while deferred data fixers execute");
+    }
+    
+    private void executeTimed(DataFixer fixer) {
+    	String name = fixer.getClass().getSimpleName();
+    	this.logger.debug("Executing data fixer: {}", name);
+    	
+    	long startNanos = System.nanoTime();
+    	try {
+    		fixer.fix();
+    	} finally {
+    		long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    		this.timings.put(name, millis);
+    		this.metrics.recordSince(METRIC_PREFIX + name, startNanos);
+    		this.logger.info("Data fixer '{}' took {} ms", name, millis);
+    	}
+    }
+    
+    /**
+     * @return The fixers, ordered so each follows its dependencies; otherwise in their original order
+     */
+    private List<DataFixer> sort(List<DataFixer> fixers) {
+    	List<DataFixer> sorted = new ArrayList<>(fixers.size());
+    	List<DataFixer> remaining = new ArrayList<>(fixers);
+    	
+    	while (!remaining.isEmpty()) {
+    		boolean progressed = false;
+    		for (int i = 0; i < remaining.size(); i++) {
+    			DataFixer fixer = remaining.get(i);
+    			if (sorted.containsAll(this.findDependencies(fixer, fixers))) {
+    				sorted.add(remaining.remove(i));
+    				progressed = true;
+    				break;
+    			}
+    		}
+    		
+    		if (!progressed)
+    			throw new IllegalStateException("The data fixers have circular dependencies: " + remaining);
+    	}
+    	
+    	return sorted;
+    }
+    
+    private List<DataFixer> findDependencies(DataFixer fixer, List<DataFixer> fixers) {
+    	List<DataFixer> deps = new ArrayList<>();
+    	for (Class<? extends DataFixer> depClass : fixer.getDependencies())
+    		for (DataFixer dep : fixers)
+    			if (dep != fixer && depClass.isInstance(dep))
+    				deps.add(dep);
+    	return deps;
+    }
+
+}
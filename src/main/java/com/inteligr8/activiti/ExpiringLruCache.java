@@ -0,0 +1,97 @@
+/*
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.inteligr8.activiti;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A simple size-bounded cache with an optional time-to-live.  When the cache
+ * is full, the least recently used entry is evicted.  Expired entries are
+ * dropped as they are encountered.
+ *
+ * All access is synchronized; this is intended for small values that are
+ * cheap to compute a key for, not as a general purpose cache.
+ *
+ * @author brian@inteligr8.com
+ */
+public class ExpiringLruCache<K, V> {
+
+	private final Map<K, Expirable<V>> map;
+	private final long ttlMillis;
+
+	/**
+	 * @param maxSize The maximum number of entries to hold
+	 * @param ttlMillis The maximum age of an entry; 0 or less to never expire
+	 */
+	public ExpiringLruCache(final int maxSize, long ttlMillis) {
+		if (maxSize < 1)
+			throw new IllegalArgumentException("The cache size must be at least 1");
+
+		this.ttlMillis = ttlMillis;
+		this.map = new LinkedHashMap<K, Expirable<V>>(Math.min(maxSize, 1024), 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, Expirable<V>> eldest) {
+				return this.size() > maxSize;
+			}
+		};
+	}
+
+	public synchronized V get(K key) {
+		Expirable<V> expirable = this.map.get(key);
+		if (expirable == null)
+			return null;
+
+		if (this.ttlMillis > 0L && System.currentTimeMillis() - expirable.created > this.ttlMillis) {
+			this.map.remove(key);
+			return null;
+		}
+
+		return expirable.value;
+	}
+
+	public synchronized void put(K key, V value) {
+		this.map.put(key, new Expirable<>(value));
+	}
+
+	public synchronized V remove(K key) {
+		Expirable<V> expirable = this.map.remove(key);
+		return expirable == null ? null : expirable.value;
+	}
+
+	public synchronized void clear() {
+		this.map.clear();
+	}
+
+	public synchronized int size() {
+		return this.map.size();
+	}
+
+
+
+	private static class Expirable<V> {
+
+		private final long created = System.currentTimeMillis();
+		private final V value;
+
+		Expirable(V value) {
+			this.value = value;
+		}
+
+	}
+
+}
@@ -0,0 +1,142 @@
+/*
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.inteligr8.activiti;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * This class/bean remembers a fingerprint of the effective configuration and
+ * outcome of each data fixer in a small properties file.  A fixer whose
+ * fingerprint has not changed since its last successful execution may skip
+ * its work.
+ * 
+ * The fingerprint should include something cheap to query that proves the
+ * outcome is still in place, like the ID of a group the fixer created.
+ * 
+ * When no file is configured, every fixer always executes.
+ * 
+ * @author brian@inteligr8.com
+ */
+@Component
+public class FixerCheckpoints {
+	
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    
+    @Value("${keycloak-ext.fixers.checkpoint.file:#{null}}")
+    private String checkpointFile;
+    
+    private Properties checkpoints;
+    
+    public boolean isEnabled() {
+    	return this.checkpointFile != null && this.checkpointFile.length() > 0;
+    }
+    
+    /**
+     * @param fixer A unique name for the fixer
+     * @param fingerprint A fingerprint; see `fingerprint()`
+     * @return true if the fingerprint matches the last recorded one; false otherwise
+     */
+    public synchronized boolean isUnchanged(String fixer, String fingerprint) {
+    	if (!this.isEnabled())
+    		return false;
+    	
+    	boolean unchanged = fingerprint.equals(this.getCheckpoints().getProperty(fixer));
+    	if (unchanged)
+    		this.logger.debug("The data fixer '{}' has nothing new to do", fixer);
+    	return unchanged;
+    }
+    
+    /**
+     * This method should be called only after the fixer has succeeded.
+     * 
+     * @param fixer A unique name for the fixer
+     * @param fingerprint A fingerprint; see `fingerprint()`
+     */
+    public synchronized void record(String fixer, String fingerprint) {
+    	if (!this.isEnabled())
+    		return;
+    	
+    	Properties checkpoints = this.getCheckpoints();
+    	if (fingerprint.equals(checkpoints.getProperty(fixer)))
+    		return;
+    	
+    	checkpoints.setProperty(fixer, fingerprint);
+    	
+    	// write and move, so a crash never leaves a partial file
+    	File file = new File(this.checkpointFile);
+    	File tempFile = new File(file.getPath() + ".tmp");
+    	try {
+    		try (OutputStream ostream = Files.newOutputStream(tempFile.toPath())) {
+    			checkpoints.store(ostream, null);
+    		}
+    		Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    	} catch (IOException ie) {
+    		this.logger.warn("Unable to save the data fixer checkpoints; the fixers will execute again on the next startup: {}", file, ie);
+    	}
+    }
+    
+    /**
+     * @param parts The effective configuration and outcome of a fixer; nulls are allowed
+     * @return A digest of all the parts
+     */
+    public String fingerprint(Object... parts) {
+    	MessageDigest digest;
+    	try {
+    		digest = MessageDigest.getInstance("SHA-256");
+    	} catch (NoSuchAlgorithmException nsae) {
+    		throw new IllegalStateException(nsae);
+    	}
+    	
+    	for (Object part : parts) {
+    		digest.update((byte)0);
+    		digest.update(String.valueOf(part).getBytes(StandardCharsets.UTF_8));
+    	}
+    	
+    	return Base64.getEncoder().encodeToString(digest.digest());
+    }
+    
+    private Properties getCheckpoints() {
+    	if (this.checkpoints != null)
+    		return this.checkpoints;
+    	
+    	this.checkpoints = new Properties();
+    	File file = new File(this.checkpointFile);
+    	if (file.isFile()) {
+    		try (InputStream istream = Files.newInputStream(file.toPath())) {
+    			this.checkpoints.load(istream);
+    		} catch (IOException ie) {
+    			this.logger.warn("Unable to read the data fixer checkpoints; all fixers will execute: {}", file, ie);
+    		}
+    	}
+    	
+    	return this.checkpoints;
+    }
+
+}
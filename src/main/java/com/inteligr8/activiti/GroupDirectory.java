@@ -0,0 +1,370 @@
+/*
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.inteligr8.activiti;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.activiti.domain.idm.Group;
+
+/**
+ * This class/bean holds an in-memory directory of the groups in each tenant,
+ * indexed by external ID and by name.  A tenant's groups are loaded on first
+ * use; concurrent first uses of the same tenant share one load, while other
+ * tenants load independently.  After that, only the groups updated since the
+ * last refresh are queried.  Deleted groups are only noticed on the periodic
+ * full reload, or when a sync referencing one fails and invalidates the tenant.
+ *
+ * Groups created or saved by this extension should be registered so they are
+ * visible as soon as their transaction commits.  Only the groups queried from
+ * the database advance the refresh watermark, as this node's clock says
+ * nothing about what other nodes committed.
+ *
+ * When disabled, every lookup is delegated to the database.
+ *
+ * A tenant's groups are also refreshed as soon as another node of the cluster
+ * is found to have changed them.
+ *
+ * @author brian@inteligr8.com
+ */
+@Component
+public class GroupDirectory implements TenantCacheListener {
+
+	private static final Long NO_TENANT = Long.MIN_VALUE;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Autowired
+    private GroupFinderService groupFinderService;
+
+    @Value("${keycloak-ext.group.directory.enabled:true}")
+    private boolean enabled;
+
+    @Value("${keycloak-ext.group.directory.refreshSeconds:60}")
+    private long refreshSeconds;
+
+    @Value("${keycloak-ext.group.directory.reloadSeconds:3600}")
+    private long reloadSeconds;
+
+    private final ConcurrentMap<Long, TenantGroups> tenants = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Long, CompletableFuture<TenantGroups>> loads = new ConcurrentHashMap<>();
+
+    public boolean isEnabled() {
+		return this.enabled;
+	}
+
+    /**
+     * @param externalIds A collection of group external IDs
+     * @param tenantId A tenant ID; may be null
+     * @return A map of external IDs to the groups with that external ID; external IDs without groups are not included
+     */
+    public Map<String, List<GroupRef>> findGroupsByExternalIds(Collection<String> externalIds, Long tenantId) {
+    	if (!this.enabled)
+    		return this.toRefs(this.groupFinderService.findGroupsByExternalIds(externalIds, tenantId));
+    	return this.getTenantGroups(tenantId).lookup(externalIds, true);
+    }
+
+    /**
+     * @param names A collection of group names
+     * @param tenantId A tenant ID; may be null
+     * @return A map of names to the groups with that name; names without groups are not included
+     */
+    public Map<String, List<GroupRef>> findGroupsByNames(Collection<String> names, Long tenantId) {
+    	if (!this.enabled)
+    		return this.toRefs(this.groupFinderService.findGroupsByNames(names, tenantId));
+    	return this.getTenantGroups(tenantId).lookup(names, false);
+    }
+
+    public List<GroupRef> findGroupsByExternalId(String externalId, Long tenantId) {
+    	if (externalId == null)
+    		return Collections.emptyList();
+    	return this.findGroupsByExternalIds(Collections.singleton(externalId), tenantId).getOrDefault(externalId, Collections.emptyList());
+    }
+
+    public List<GroupRef> findGroupsByName(String name, Long tenantId) {
+    	if (name == null)
+    		return Collections.emptyList();
+    	return this.findGroupsByNames(Collections.singleton(name), tenantId).getOrDefault(name, Collections.emptyList());
+    }
+
+    /**
+     * This method makes a group created or updated by this extension visible
+     * in the directory; after the current transaction commits, if any.  A
+     * group moved to another tenant is removed from its previous tenant.
+     */
+    public void register(Group group) {
+    	if (!this.enabled || group == null)
+    		return;
+
+    	GroupRef groupRef = GroupRef.of(group);
+    	TransactionCallbacks.afterCommit(() -> {
+    		Long key = this.toKey(groupRef.getTenantId());
+    		for (Entry<Long, TenantGroups> tenantGroups : this.tenants.entrySet()) {
+    			if (tenantGroups.getKey().equals(key)) {
+    				tenantGroups.getValue().put(groupRef, false);
+    			} else {
+    				tenantGroups.getValue().remove(groupRef.getId());
+    			}
+    		}
+    	});
+    }
+
+    @Override
+    public void onGroupsChanged(Long tenantId) {
+    	if (!this.enabled)
+    		return;
+
+    	TenantGroups tenantGroups = this.tenants.get(this.toKey(tenantId));
+    	if (tenantGroups != null)
+    		tenantGroups.refresh(true);
+    }
+
+    /**
+     * This method discards the groups of the specified tenant.  They will be
+     * fully reloaded on next use.
+     */
+    public void invalidate(Long tenantId) {
+    	this.tenants.remove(this.toKey(tenantId));
+    }
+
+    private TenantGroups getTenantGroups(Long tenantId) {
+    	Long key = this.toKey(tenantId);
+    	TenantGroups tenantGroups = this.tenants.get(key);
+
+    	if (tenantGroups == null) {
+    		tenantGroups = this.loadOnce(tenantId, key);
+    	} else if (this.reloadSeconds > 0L && tenantGroups.isOlderThan(tenantGroups.loaded, this.reloadSeconds) && tenantGroups.reloading.compareAndSet(false, true)) {
+    		try {
+    			tenantGroups = this.load(tenantId);
+    			this.tenants.put(key, tenantGroups);
+    		} catch (RuntimeException re) {
+    			this.logger.warn("Unable to reload the groups of tenant {}; continuing with the previous groups", tenantId, re);
+    			tenantGroups.reloading.set(false);
+    		}
+    	} else if (tenantGroups.isOlderThan(tenantGroups.refreshed, this.refreshSeconds)) {
+    		tenantGroups.refresh(false);
+    	}
+
+    	return tenantGroups;
+    }
+
+    /**
+     * The first thread to miss a tenant loads it; any other thread missing the
+     * same tenant meanwhile waits for that load instead of starting its own.
+     */
+    private TenantGroups loadOnce(Long tenantId, Long key) {
+    	CompletableFuture<TenantGroups> future = new CompletableFuture<>();
+    	CompletableFuture<TenantGroups> loading = this.loads.putIfAbsent(key, future);
+    	if (loading != null) {
+    		try {
+    			return loading.join();
+    		} catch (CompletionException ce) {
+    			if (ce.getCause() instanceof RuntimeException)
+    				throw (RuntimeException) ce.getCause();
+    			throw ce;
+    		}
+    	}
+
+    	try {
+    		// another thread may have finished loading just before this one missed
+    		TenantGroups tenantGroups = this.tenants.get(key);
+    		if (tenantGroups == null) {
+    			tenantGroups = this.load(tenantId);
+    			this.tenants.put(key, tenantGroups);
+    		}
+    		future.complete(tenantGroups);
+    		return tenantGroups;
+    	} catch (RuntimeException re) {
+    		future.completeExceptionally(re);
+    		throw re;
+    	} finally {
+    		this.loads.remove(key, future);
+    	}
+    }
+
+    private TenantGroups load(Long tenantId) {
+    	this.logger.debug("Loading all groups of tenant: {}", tenantId);
+    	TenantGroups tenantGroups = new TenantGroups(tenantId);
+    	for (GroupRef group : this.groupFinderService.findGroupRefs(tenantId, null))
+    		tenantGroups.put(group, true);
+    	this.logger.debug("Loaded {} groups of tenant: {}", tenantGroups.byId.size(), tenantId);
+    	return tenantGroups;
+    }
+
+    private Map<String, List<GroupRef>> toRefs(Map<String, List<Group>> groups) {
+    	Map<String, List<GroupRef>> refs = new HashMap<>(groups.size());
+    	for (Entry<String, List<Group>> entry : groups.entrySet()) {
+    		List<GroupRef> entryRefs = new ArrayList<>(entry.getValue().size());
+    		for (Group group : entry.getValue())
+    			entryRefs.add(GroupRef.of(group));
+    		refs.put(entry.getKey(), entryRefs);
+    	}
+    	return refs;
+    }
+
+    private Long toKey(Long tenantId) {
+    	return tenantId == null ? NO_TENANT : tenantId;
+    }
+
+
+
+    /**
+     * The indexes of a single tenant.  Reads are lock-free; writes are
+     * serialized so the indexes stay consistent with each other.
+     */
+    private class TenantGroups {
+
+    	private final Long tenantId;
+    	private final long loaded = System.currentTimeMillis();
+    	private volatile long refreshed = this.loaded;
+    	private volatile Date watermark = null;
+    	private final ReentrantLock writeLock = new ReentrantLock();
+    	private final AtomicBoolean reloading = new AtomicBoolean();
+
+    	private final ConcurrentMap<Long, GroupRef> byId = new ConcurrentHashMap<>();
+    	private final ConcurrentMap<String, List<GroupRef>> byExternalId = new ConcurrentHashMap<>();
+    	private final ConcurrentMap<String, List<GroupRef>> byName = new ConcurrentHashMap<>();
+
+    	TenantGroups(Long tenantId) {
+    		this.tenantId = tenantId;
+    	}
+
+    	boolean isOlderThan(long timestamp, long seconds) {
+    		return System.currentTimeMillis() - timestamp > seconds * 1000L;
+    	}
+
+    	Map<String, List<GroupRef>> lookup(Collection<String> keys, boolean byExternalId) {
+    		Map<String, List<GroupRef>> index = byExternalId ? this.byExternalId : this.byName;
+    		Map<String, List<GroupRef>> found = new HashMap<>(keys.size());
+    		for (String key : keys) {
+    			List<GroupRef> groups = key == null ? null : index.get(key);
+    			if (groups != null)
+    				found.put(key, groups);
+    		}
+    		return found;
+    	}
+
+    	/**
+    	 * Query only the groups updated since the latest update already seen.
+    	 * If another thread is already refreshing, this does nothing.
+    	 *
+    	 * @param force true to refresh even if recently refreshed
+    	 */
+    	void refresh(boolean force) {
+    		if (!this.writeLock.tryLock())
+    			return;
+    		try {
+    			if (!force && !this.isOlderThan(this.refreshed, GroupDirectory.this.refreshSeconds))
+    				return;
+
+    			// the watermark itself is included, in case of updates within the same timestamp
+    			List<GroupRef> groups = GroupDirectory.this.groupFinderService.findGroupRefs(this.tenantId, this.watermark);
+    			for (GroupRef group : groups)
+    				this.put(group, true);
+    			this.refreshed = System.currentTimeMillis();
+    		} catch (RuntimeException re) {
+    			GroupDirectory.this.logger.warn("Unable to refresh the groups of tenant {}; continuing with the previous groups", this.tenantId, re);
+    		} finally {
+    			this.writeLock.unlock();
+    		}
+    	}
+
+    	/**
+    	 * @param queried true if the group was just queried from the database; false if registered
+    	 */
+    	void put(GroupRef group, boolean queried) {
+    		this.writeLock.lock();
+    		try {
+    			GroupRef oldGroup = this.byId.put(group.getId(), group);
+    			if (oldGroup != null) {
+    				this.unindex(this.byExternalId, oldGroup.getExternalId(), oldGroup);
+    				this.unindex(this.byName, oldGroup.getName(), oldGroup);
+    			}
+    			this.index(this.byExternalId, group.getExternalId(), group);
+    			this.index(this.byName, group.getName(), group);
+
+    			if (queried && group.getLastUpdate() != null && (this.watermark == null || group.getLastUpdate().after(this.watermark)))
+    				this.watermark = group.getLastUpdate();
+    		} finally {
+    			this.writeLock.unlock();
+    		}
+    	}
+
+    	void remove(Long groupId) {
+    		this.writeLock.lock();
+    		try {
+    			GroupRef oldGroup = this.byId.remove(groupId);
+    			if (oldGroup != null) {
+    				this.unindex(this.byExternalId, oldGroup.getExternalId(), oldGroup);
+    				this.unindex(this.byName, oldGroup.getName(), oldGroup);
+    			}
+    		} finally {
+    			this.writeLock.unlock();
+    		}
+    	}
+
+    	private void index(ConcurrentMap<String, List<GroupRef>> index, String key, GroupRef group) {
+    		if (key == null)
+    			return;
+
+    		List<GroupRef> groups = index.get(key);
+    		List<GroupRef> newGroups = new ArrayList<>(groups == null ? 1 : groups.size() + 1);
+    		if (groups != null)
+    			newGroups.addAll(groups);
+    		newGroups.add(group);
+    		index.put(key, Collections.unmodifiableList(newGroups));
+    	}
+
+    	private void unindex(ConcurrentMap<String, List<GroupRef>> index, String key, GroupRef group) {
+    		if (key == null)
+    			return;
+
+    		List<GroupRef> groups = index.get(key);
+    		if (groups == null)
+    			return;
+
+    		List<GroupRef> newGroups = new ArrayList<>(groups.size());
+    		for (GroupRef g : groups)
+    			if (!g.getId().equals(group.getId()))
+    				newGroups.add(g);
+
+    		if (newGroups.isEmpty()) {
+    			index.remove(key);
+    		} else {
+    			index.put(key, Collections.unmodifiableList(newGroups));
+    		}
+    	}
+
+    }
+
+}
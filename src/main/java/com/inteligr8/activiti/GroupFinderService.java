@@ -0,0 +1,165 @@
+/*
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.inteligr8.activiti;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Tuple;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.activiti.domain.idm.Group;
+
+/**
+ * This service provides bulk group lookups that the APS GroupService does not
+ * offer.  Each lookup resolves many external IDs or names with one `IN` query
+ * per batch instead of one query each.
+ *
+ * @author brian@inteligr8.com
+ */
+@Component
+public class GroupFinderService {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Value("${keycloak-ext.group.query.batchSize:500}")
+    private int batchSize;
+
+    /**
+     * @param externalIds A collection of group external IDs
+     * @param tenantId A tenant ID; may be null
+     * @return A map of external IDs to the groups with that external ID; external IDs without groups are not included
+     */
+    public Map<String, List<Group>> findGroupsByExternalIds(Collection<String> externalIds, Long tenantId) {
+    	Map<String, List<Group>> groups = new HashMap<>(externalIds.size());
+    	for (Group group : this.findGroupsBy("externalId", externalIds, tenantId))
+    		groups.computeIfAbsent(group.getExternalId(), key -> new LinkedList<>()).add(group);
+    	return groups;
+    }
+
+    /**
+     * @param names A collection of group names
+     * @param tenantId A tenant ID; may be null
+     * @return A map of names to the groups with that name; names without groups are not included
+     */
+    public Map<String, List<Group>> findGroupsByNames(Collection<String> names, Long tenantId) {
+    	Map<String, List<Group>> groups = new HashMap<>(names.size());
+    	for (Group group : this.findGroupsBy("name", names, tenantId))
+    		groups.computeIfAbsent(group.getName(), key -> new LinkedList<>()).add(group);
+    	return groups;
+    }
+
+    /**
+     * This method loads a lightweight projection of the groups in a tenant,
+     * rather than the full entities.
+     * 
+     * @param tenantId A tenant ID; may be null
+     * @param since Only include groups updated at or after this time; null for all groups
+     * @return A list of group summaries
+     */
+    public List<GroupRef> findGroupRefs(Long tenantId, Date since) {
+		CriteriaBuilder cb = this.entityManager.getCriteriaBuilder();
+		CriteriaQuery<Tuple> query = cb.createTupleQuery();
+		Root<Group> root = query.from(Group.class);
+		query.multiselect(root.get("id"), root.get("name"), root.get("externalId"), root.get("tenantId"), root.get("type"), root.get("lastUpdate"));
+		
+		Predicate tenantPredicate = tenantId == null ? cb.isNull(root.get("tenantId")) : cb.equal(root.get("tenantId"), tenantId);
+		if (since == null) {
+			query.where(tenantPredicate);
+		} else {
+			query.where(tenantPredicate, cb.greaterThanOrEqualTo(root.<Date>get("lastUpdate"), since));
+		}
+		
+		List<Tuple> tuples = this.entityManager.createQuery(query).getResultList();
+		List<GroupRef> groups = new ArrayList<>(tuples.size());
+		for (Tuple tuple : tuples) {
+			groups.add(new GroupRef(
+					tuple.get(0, Long.class),
+					tuple.get(1, String.class),
+					tuple.get(2, String.class),
+					tuple.get(3, Long.class),
+					tuple.get(4, Integer.class),
+					tuple.get(5, Date.class)));
+		}
+		
+    	this.logger.debug("Found {} groups in tenant {} updated since: {}", groups.size(), tenantId, since);
+		return groups;
+    }
+    
+    /**
+     * @return A map of tenant IDs to the latest update of any of their groups; groups without a tenant are keyed by null
+     */
+    public Map<Long, Date> findLastUpdates() {
+		CriteriaBuilder cb = this.entityManager.getCriteriaBuilder();
+		CriteriaQuery<Tuple> query = cb.createTupleQuery();
+		Root<Group> root = query.from(Group.class);
+		query.multiselect(root.get("tenantId"), cb.greatest(root.<Date>get("lastUpdate"))).groupBy(root.get("tenantId"));
+		
+		Map<Long, Date> lastUpdates = new HashMap<>();
+		for (Tuple tuple : this.entityManager.createQuery(query).getResultList())
+			lastUpdates.put(tuple.get(0, Long.class), tuple.get(1, Date.class));
+		return lastUpdates;
+    }
+    
+    /**
+     * @param groupId A group ID
+     * @return A lazily loaded group entity; no query is executed unless its properties are accessed
+     */
+    public Group getGroupReference(Long groupId) {
+    	return this.entityManager.getReference(Group.class, groupId);
+    }
+
+    private List<Group> findGroupsBy(String attribute, Collection<String> values, Long tenantId) {
+    	List<Group> groups = new LinkedList<>();
+    	if (values.isEmpty())
+    		return groups;
+
+    	List<String> valueList = new ArrayList<>(values);
+    	for (int i = 0; i < valueList.size(); i += this.batchSize) {
+    		List<String> batch = valueList.subList(i, Math.min(i + this.batchSize, valueList.size()));
+    		this.logger.trace("Querying for {} groups by {} in tenant: {}", batch.size(), attribute, tenantId);
+
+    		CriteriaBuilder cb = this.entityManager.getCriteriaBuilder();
+    		CriteriaQuery<Group> query = cb.createQuery(Group.class);
+    		Root<Group> root = query.from(Group.class);
+    		Predicate tenantPredicate = tenantId == null ? cb.isNull(root.get("tenantId")) : cb.equal(root.get("tenantId"), tenantId);
+    		query.select(root).where(root.get(attribute).in(batch), tenantPredicate);
+
+    		groups.addAll(this.entityManager.createQuery(query).getResultList());
+    	}
+
+    	this.logger.debug("Found {} groups by {} in tenant: {}", groups.size(), attribute, tenantId);
+    	return groups;
+    }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.inteligr8.activiti;
+
+import java.util.Date;
+
+import com.activiti.domain.idm.Group;
+
+/**
+ * An immutable, detached summary of an APS group.  This is what is held in
+ * memory instead of the JPA entity.
+ *
+ * @author brian@inteligr8.com
+ */
+public class GroupRef {
+
+	public static GroupRef of(Group group) {
+		return new GroupRef(group.getId(), group.getName(), group.getExternalId(), group.getTenantId(), group.getType(), group.getLastUpdate());
+	}
+
+	private final Long id;
+	private final String name;
+	private final String externalId;
+	private final Long tenantId;
+	private final Integer type;
+	private final Date lastUpdate;
+
+	public GroupRef(Long id, String name, String externalId, Long tenantId, Integer type, Date lastUpdate) {
+		this.id = id;
+		this.name = name;
+		this.externalId = externalId;
+		this.tenantId = tenantId;
+		this.type = type;
+		this.lastUpdate = lastUpdate;
+	}
+
+	public Long getId() {
+		return this.id;
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	public String getExternalId() {
+		return this.externalId;
+	}
+
+	public Long getTenantId() {
+		return this.tenantId;
+	}
+
+	public Integer getType() {
+		return this.type;
+	}
+
+	public Date getLastUpdate() {
+		return this.lastUpdate;
+	}
+
+	@Override
+	public String toString() {
+		return this.name + " [" + this.externalId + "]";
+	}
+
+}
@@ -47,6 +47,9 @@ public class Inteligr8SecurityConfigurationRegistry implements AlfrescoSecurityC
     
     @Autowired(required = false)
     private List<DataFixer> fixers;
+    
+    @Autowired
+    private DataFixerExecutor fixerExecutor;
 	
 	@Override
 	public void configureGlobal(AuthenticationManagerBuilder authmanBuilder, UserDetailsService userDetailsService) {
@@ -54,10 +57,8 @@ public class Inteligr8SecurityConfigurationRegistry implements AlfrescoSecurityC
 		
 		Collections.sort(this.adapters);
 		
-		if (this.fixers != null) {
-			for (DataFixer fixer : this.fixers)
-				fixer.fix();
-		}
+		if (this.fixers != null)
+			this.fixerExecutor.execute(this.fixers);
 		
 		for (ActivitiSecurityConfigAdapter adapter : this.adapters) {
 			if (adapter.isEnabled()) {
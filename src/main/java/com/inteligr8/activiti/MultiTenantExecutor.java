@@ -0,0 +1,132 @@
+/*
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.inteligr8.activiti;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * This class/bean executes tenant-specific work, like that of the admin data
+ * fixers.  By default, the work is only executed for the configured tenant.
+ * When enabled, it is executed for every tenant instead, several tenants at
+ * a time.
+ * 
+ * The failure of one tenant is logged and does not stop the others.
+ * 
+ * @author brian@inteligr8.com
+ */
+@Component
+public class MultiTenantExecutor {
+	
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    
+    @Autowired
+    private TenantFinderService tenantFinderService;
+    
+    @Value("${keycloak-ext.fixers.allTenants:false}")
+    private boolean allTenants;
+    
+    @Value("${keycloak-ext.fixers.tenantParallelism:4}")
+    private int parallelism;
+    
+    public boolean isAllTenants() {
+		return this.allTenants;
+	}
+    
+    /**
+     * @param description A description of the work, for logging
+     * @param work The work to execute, given a tenant ID; the tenant ID may be null
+     */
+    public void execute(String description, Consumer<Long> work) {
+    	if (!this.allTenants) {
+    		work.accept(this.tenantFinderService.findTenantId());
+    		return;
+    	}
+    	
+    	Collection<TenantRef> tenants = this.tenantFinderService.getTenantRefs();
+    	List<Long> tenantIds = new ArrayList<>(tenants.size());
+    	for (TenantRef tenant : tenants)
+    		tenantIds.add(tenant.getId());
+    	this.execute(description, tenantIds, work);
+    }
+    
+    /**
+     * @param description A description of the work, for logging
+     * @param tenantIds The IDs of the tenants to execute the work for
+     * @param work The work to execute, given a tenant ID
+     * @return The number of tenants the work failed for
+     */
+    public int execute(String description, Collection<Long> tenantIds, Consumer<Long> work) {
+    	if (tenantIds.size() <= 1 || this.parallelism <= 1) {
+    		int failures = 0;
+    		for (Long tenantId : tenantIds)
+    			if (!this.executeIsolated(description, tenantId, work))
+    				failures++;
+    		return failures;
+    	}
+    	
+    	this.logger.debug("Executing '{}' for {} tenants, {} at a time", description, tenantIds.size(), this.parallelism);
+    	
+    	AtomicInteger threadCount = new AtomicInteger();
+    	ExecutorService executor = Executors.newFixedThreadPool(Math.min(this.parallelism, tenantIds.size()), runnable -> {
+			Thread thread = new Thread(runnable, "keycloak-ext-tenant-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+    	});
+    	
+    	try {
+    		List<Future<Boolean>> futures = new ArrayList<>(tenantIds.size());
+    		for (Long tenantId : tenantIds)
+    			futures.add(executor.submit(() -> this.executeIsolated(description, tenantId, work)));
+    		
+    		int failures = 0;
+    		for (Future<Boolean> future : futures)
+    			if (!future.get())
+    				failures++;
+    		return failures;
+    	} catch (InterruptedException ie) {
+    		Thread.currentThread().interrupt();
+    		throw new IllegalStateException("Interrupted while executing '" + description + "'", ie);
+    	} catch (ExecutionException ee) {
+    		throw new IllegalStateException(ee.getCause());
+    	} finally {
+    		executor.shutdownNow();
+    	}
+    }
+    
+    private boolean executeIsolated(String description, Long tenantId, Consumer<Long> work) {
+    	try {
+    		work.accept(tenantId);
+    		return true;
+    	} catch (RuntimeException re) {
+    		this.logger.error("Unable to execute '{}' for tenant: {}", description, tenantId, re);
+    		return false;
+    	}
+    }
+
+}
@@ -0,0 +1,41 @@
+/*
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.inteligr8.activiti;
+
+import java.util.Collection;
+
+/**
+ * This interface is implemented by beans that cache users or groups, so they
+ * are told when another node of the cluster changes them.
+ * 
+ * @author brian@inteligr8.com
+ * @see ClusterCoherence
+ */
+public interface TenantCacheListener {
+	
+	/**
+	 * @param tenantId A tenant ID; may be null
+	 */
+	default void onGroupsChanged(Long tenantId) {
+	}
+	
+	/**
+	 * @param tenantId A tenant ID; may be null
+	 * @param emails The email addresses of the changed users; null if any user of the tenant may have changed
+	 */
+	default void onUsersChanged(Long tenantId, Collection<String> emails) {
+	}
+	
+}
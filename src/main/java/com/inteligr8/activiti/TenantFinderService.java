@@ -16,7 +16,16 @@ package com.inteligr8.activiti;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Tuple;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Root;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,6 +40,15 @@ import com.activiti.service.license.LicenseService;
 /**
  * This service simpler tenant meta-data access.
  * 
+ * The tenant meta-data is cached for a configurable period of time.  When it
+ * expires, one caller refreshes it while concurrent callers continue to use
+ * the expired meta-data.
+ * 
+ * Only the ID and name of each tenant is cached; all of them are loaded with
+ * a single query.  Tenant entities are never cached; the default tenant is
+ * read through the APS tenant service, while all the tenants are loaded with
+ * a single query.
+ * 
  * @author brian@inteligr8.com
  */
 @Component
@@ -44,58 +62,175 @@ public class TenantFinderService {
     @Autowired(required = false)
     private TenantService tenantService;
     
+    @PersistenceContext
+    private EntityManager entityManager;
+    
     @Value("${keycloak-ext.tenant:#{null}}")
     private String tenant;
     
+    @Value("${keycloak-ext.tenant.cache.ttlSeconds:300}")
+    private long cacheTtlSeconds;
+    
+    private final ReentrantLock refreshLock = new ReentrantLock();
+    private volatile TenantSnapshot snapshot;
+    
     public Long findTenantId() {
-    	Tenant tenant = this.findTenant();
+    	TenantRef tenant = this.getSnapshot().defaultTenant;
     	return tenant == null ? null : tenant.getId();
     }
     
+    public TenantRef findTenantRef() {
+    	return this.getSnapshot().defaultTenant;
+    }
+    
+    /**
+     * @return The default tenant entity; null if there is no default tenant
+     */
     public Tenant findTenant() {
+    	Long tenantId = this.findTenantId();
+    	return tenantId == null ? null : this.tenantService.getTenant(tenantId);
+    }
+    
+    /**
+     * @return The ID and name of every tenant; cached
+     */
+    public Collection<TenantRef> getTenantRefs() {
+    	return this.getSnapshot().tenants;
+    }
+    
+    /**
+     * The tenants are those of the cached meta-data; their entities are
+     * loaded with one query.  Use `getTenantRefs()` if only the ID and name
+     * of the tenants are needed.
+     * 
+     * @return Every tenant entity
+     */
+    public Collection<Tenant> getTenants() {
+    	Collection<TenantRef> tenantRefs = this.getTenantRefs();
+    	if (tenantRefs.isEmpty())
+    		return Collections.emptyList();
+    	
+    	List<Long> tenantIds = new ArrayList<>(tenantRefs.size());
+    	for (TenantRef tenantRef : tenantRefs)
+    		tenantIds.add(tenantRef.getId());
+    	
+		CriteriaQuery<Tenant> query = this.entityManager.getCriteriaBuilder().createQuery(Tenant.class);
+		Root<Tenant> root = query.from(Tenant.class);
+		query.select(root).where(root.get("id").in(tenantIds));
+		return this.entityManager.createQuery(query).getResultList();
+    }
+    
+    /**
+     * This method marks the cached tenant meta-data as out-of-date.  The next
+     * caller will reload it; any concurrent callers continue to be served the
+     * previous meta-data until that reload completes.
+     */
+    public void invalidate() {
+    	TenantSnapshot snapshot = this.snapshot;
+    	if (snapshot != null)
+    		snapshot.invalidated = true;
+    }
+    
+    private TenantSnapshot getSnapshot() {
+    	if (this.cacheTtlSeconds <= 0L)
+    		return this.loadSnapshot();
+    	
+    	TenantSnapshot snapshot = this.snapshot;
+    	if (snapshot == null) {
+    		// nothing to serve yet; everyone waits on the first load
+    		this.refreshLock.lock();
+    		try {
+    			snapshot = this.snapshot;
+    			if (snapshot == null)
+    				this.snapshot = snapshot = this.loadSnapshot();
+    		} finally {
+    			this.refreshLock.unlock();
+    		}
+    	} else if (snapshot.isStale() && this.refreshLock.tryLock()) {
+    		// only one caller refreshes; everyone else uses the stale snapshot
+    		try {
+    			if (this.snapshot == snapshot) {
+    				this.snapshot = snapshot = this.loadSnapshot();
+    			} else {
+    				snapshot = this.snapshot;
+    			}
+    		} catch (RuntimeException re) {
+    			this.logger.warn("Unable to refresh the tenant meta-data; continuing to use the previous meta-data", re);
+    		} finally {
+    			this.refreshLock.unlock();
+    		}
+    	}
+    	
+    	return snapshot;
+    }
+    
+    private TenantSnapshot loadSnapshot() {
+		this.logger.debug("Loading tenant meta-data ...");
+		
+		CriteriaBuilder cb = this.entityManager.getCriteriaBuilder();
+		CriteriaQuery<Tuple> query = cb.createTupleQuery();
+		Root<Tenant> root = query.from(Tenant.class);
+		query.multiselect(root.get("id"), root.get("name"));
+		
+		List<Tuple> tuples = this.entityManager.createQuery(query).getResultList();
+		List<TenantRef> tenants = new ArrayList<>(tuples.size());
+		for (Tuple tuple : tuples)
+			tenants.add(new TenantRef(tuple.get(0, Long.class), tuple.get(1, String.class)));
+		
+		this.logger.debug("Loaded {} tenants", tenants.size());
+		return new TenantSnapshot(Collections.unmodifiableList(tenants), this.findDefaultTenant(tenants),
+				System.currentTimeMillis() + this.cacheTtlSeconds * 1000L);
+    }
+    
+    private TenantRef findDefaultTenant(List<TenantRef> tenants) {
 		this.logger.debug("Checking for a single tenant ...");
 		
     	String tenantName = null;
     	if (this.tenant != null) {
     		tenantName = this.tenant;
-    	} else {
-    		List<Object[]> tenants = this.tenantService.getAllTenants();
-    		if (tenants == null || tenants.isEmpty()) {
-    			this.logger.warn("No tenants found!");
-    			return null;
-    		} else if (tenants.size() == 1) {
-    			Object[] tenant = tenants.iterator().next();
-    			this.logger.debug("Only one tenant available; selecting it: {}", tenant[0]);
-    			return this.tenantService.getTenant((Long)tenant[0]);
-    		} else {
-    			tenantName = this.licenseService.getDefaultTenantName();
-    		}
+    	} else if (tenants.isEmpty()) {
+			this.logger.warn("No tenants found!");
+			return null;
+		} else if (tenants.size() == 1) {
+			TenantRef tenant = tenants.iterator().next();
+			this.logger.debug("Only one tenant available; selecting it: {}", tenant.getId());
+			return tenant;
+		} else {
+			tenantName = this.licenseService.getDefaultTenantName();
     	}
     	
 		this.logger.debug("Trying to find by tenant name: {}", tenantName);
 		
-    	List<Tenant> tenants = this.tenantService.findTenantsByName(tenantName);
-    	if (tenants == null || tenants.isEmpty()) {
-    		this.logger.warn("Named tenant not found");
-    		return null;
-    	}
-
-		this.logger.debug("Found {} tenants with name {}; selecting the first one", tenants.size(), tenantName);
-    	return tenants.iterator().next();
-    }
-    
-    public Collection<Tenant> getTenants() {
-		List<Object[]> tenantObjs = this.tenantService.getAllTenants();
-		
-		List<Tenant> tenants = new ArrayList<>(tenantObjs.size());
-		for (Object[] tenantObj : tenantObjs) {
-			if (tenantObj != null && tenantObj[0] != null) {
-				Tenant tenant = this.tenantService.getTenant((Long)tenantObj[0]);
-				tenants.add(tenant);
+		for (TenantRef tenant : tenants) {
+			if (tenantName != null && tenantName.equals(tenant.getName())) {
+				this.logger.debug("Found tenant with name {}: {}", tenantName, tenant.getId());
+				return tenant;
 			}
 		}
 		
-		return tenants;
+		this.logger.warn("Named tenant not found");
+		return null;
+    }
+    
+    
+    
+    private static class TenantSnapshot {
+    	
+    	private final List<TenantRef> tenants;
+    	private final TenantRef defaultTenant;
+    	private final long expiration;
+    	private volatile boolean invalidated = false;
+    	
+    	TenantSnapshot(List<TenantRef> tenants, TenantRef defaultTenant, long expiration) {
+    		this.tenants = tenants;
+    		this.defaultTenant = defaultTenant;
+    		this.expiration = expiration;
+    	}
+    	
+    	boolean isStale() {
+    		return this.invalidated || System.currentTimeMillis() > this.expiration;
+    	}
+    	
     }
 
 }
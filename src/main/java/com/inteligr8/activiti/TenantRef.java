@@ -0,0 +1,52 @@
+/*
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.inteligr8.activiti;
+
+import com.activiti.domain.idm.Tenant;
+
+/**
+ * An immutable, detached summary of an APS tenant.  This is what is held in
+ * memory instead of the JPA entity.
+ *
+ * @author brian@inteligr8.com
+ */
+public class TenantRef {
+
+	public static TenantRef of(Tenant tenant) {
+		return new TenantRef(tenant.getId(), tenant.getName());
+	}
+
+	private final Long id;
+	private final String name;
+
+	public TenantRef(Long id, String name) {
+		this.id = id;
+		this.name = name;
+	}
+
+	public Long getId() {
+		return this.id;
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	@Override
+	public String toString() {
+		return this.name + " [" + this.id + "]";
+	}
+
+}
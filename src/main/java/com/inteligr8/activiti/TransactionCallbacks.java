@@ -0,0 +1,49 @@
+/*
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.inteligr8.activiti;
+
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * This class defers in-memory updates that mirror database changes until
+ * those changes are committed, so a rolled back transaction never leaves a
+ * cache holding something that does not exist.
+ *
+ * @author brian@inteligr8.com
+ */
+public class TransactionCallbacks {
+
+	private TransactionCallbacks() {
+	}
+
+	/**
+	 * @param callback Executed after the current transaction commits; or now, if there is no transaction
+	 */
+	public static void afterCommit(Runnable callback) {
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			callback.run();
+			return;
+		}
+
+		TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+			@Override
+			public void afterCommit() {
+				callback.run();
+			}
+		});
+	}
+
+}
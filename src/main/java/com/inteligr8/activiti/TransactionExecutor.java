@@ -0,0 +1,49 @@
+/*
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.inteligr8.activiti;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * This class/bean executes work in a transaction; joining the current one, if
+ * any.  There is no fallback to running without a transaction, as entity
+ * references and deferred entity changes are only valid inside one.
+ *
+ * @author brian@inteligr8.com
+ */
+@Component
+public class TransactionExecutor {
+
+    @Autowired(required = false)
+    private PlatformTransactionManager transactionManager;
+
+    /**
+     * @param work The work to execute in a transaction
+     * @throws IllegalStateException There is no transaction manager
+     */
+    public void execute(Runnable work) {
+    	if (this.transactionManager == null)
+    		throw new IllegalStateException("A transaction manager is required, but none was found");
+
+    	new TransactionTemplate(this.transactionManager).execute(status -> {
+    		work.run();
+    		return null;
+    	});
+    }
+
+}
@@ -0,0 +1,159 @@
+/*
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.inteligr8.activiti;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Tuple;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Join;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.activiti.domain.idm.Group;
+import com.activiti.domain.idm.User;
+
+/**
+ * This service provides bulk user lookups that the APS UserService does not
+ * offer.  Each lookup resolves many users with one `IN` query per batch
+ * instead of one query each.
+ *
+ * @author brian@inteligr8.com
+ */
+@Component
+public class UserFinderService {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Value("${keycloak-ext.user.query.batchSize:500}")
+    private int batchSize;
+
+    /**
+     * @param userId A user ID
+     * @return A lazily loaded user entity; no query is executed unless its properties are accessed
+     */
+    public User getUserReference(Long userId) {
+    	return this.entityManager.getReference(User.class, userId);
+    }
+
+    /**
+     * Email addresses are matched regardless of case.
+     *
+     * @param emails A collection of email addresses
+     * @param tenantId A tenant ID; may be null
+     * @return A map of lowercased email addresses to their user; email addresses without a user are not included
+     */
+    public Map<String, User> findUsersByEmails(Collection<String> emails, Long tenantId) {
+    	Map<String, User> users = new HashMap<>(emails.size());
+    	List<String> emailList = new ArrayList<>(emails.size());
+    	for (String email : emails)
+    		emailList.add(email.toLowerCase());
+    	for (int i = 0; i < emailList.size(); i += this.batchSize) {
+    		List<String> batch = emailList.subList(i, Math.min(i + this.batchSize, emailList.size()));
+    		this.logger.trace("Querying for {} users by email in tenant: {}", batch.size(), tenantId);
+
+    		CriteriaBuilder cb = this.entityManager.getCriteriaBuilder();
+    		CriteriaQuery<User> query = cb.createQuery(User.class);
+    		Root<User> root = query.from(User.class);
+    		Predicate tenantPredicate = tenantId == null ? cb.isNull(root.get("tenantId")) : cb.equal(root.get("tenantId"), tenantId);
+    		query.select(root).where(cb.lower(root.<String>get("email")).in(batch), tenantPredicate);
+
+    		for (User user : this.entityManager.createQuery(query).getResultList())
+    			users.put(user.getEmail().toLowerCase(), user);
+    	}
+
+    	this.logger.debug("Found {} of {} users by email in tenant: {}", users.size(), emails.size(), tenantId);
+    	return users;
+    }
+
+    /**
+     * @return The latest update of any user; null if there are no users
+     */
+    public Date findLastUpdate() {
+    	CriteriaBuilder cb = this.entityManager.getCriteriaBuilder();
+    	CriteriaQuery<Date> query = cb.createQuery(Date.class);
+    	Root<User> root = query.from(User.class);
+    	query.select(cb.greatest(root.<Date>get("lastUpdate")));
+    	return this.entityManager.createQuery(query).getSingleResult();
+    }
+
+    /**
+     * @param since Only include users updated at or after this time; null for all users
+     * @return The updates of the users of every tenant
+     */
+    public List<UserUpdate> findUpdatesSince(Date since) {
+    	CriteriaBuilder cb = this.entityManager.getCriteriaBuilder();
+    	CriteriaQuery<Tuple> query = cb.createTupleQuery();
+    	Root<User> root = query.from(User.class);
+    	query.multiselect(root.get("tenantId"), root.get("email"), root.get("lastUpdate"));
+    	if (since != null)
+    		query.where(cb.greaterThanOrEqualTo(root.<Date>get("lastUpdate"), since));
+
+    	List<Tuple> tuples = this.entityManager.createQuery(query).getResultList();
+    	List<UserUpdate> updates = new ArrayList<>(tuples.size());
+    	for (Tuple tuple : tuples)
+    		updates.add(new UserUpdate(tuple.get(0, Long.class), tuple.get(1, String.class), tuple.get(2, Date.class)));
+
+    	this.logger.debug("Found {} users updated since: {}", updates.size(), since);
+    	return updates;
+    }
+
+    /**
+     * @param groupIds A collection of group IDs
+     * @param userIds A collection of user IDs
+     * @return A map of group IDs to the IDs of the specified users that are members; groups without any of the users are not included
+     */
+    public Map<Long, Set<Long>> findMembers(Collection<Long> groupIds, Collection<Long> userIds) {
+    	Map<Long, Set<Long>> members = new HashMap<>(groupIds.size());
+    	if (groupIds.isEmpty())
+    		return members;
+
+    	List<Long> userIdList = new ArrayList<>(userIds);
+    	for (int i = 0; i < userIdList.size(); i += this.batchSize) {
+    		List<Long> batch = userIdList.subList(i, Math.min(i + this.batchSize, userIdList.size()));
+
+    		CriteriaBuilder cb = this.entityManager.getCriteriaBuilder();
+    		CriteriaQuery<Tuple> query = cb.createTupleQuery();
+    		Root<User> root = query.from(User.class);
+    		Join<User, Group> groups = root.join("groups");
+    		query.multiselect(groups.get("id"), root.get("id"))
+    				.where(groups.get("id").in(groupIds), root.get("id").in(batch));
+
+    		for (Tuple tuple : this.entityManager.createQuery(query).getResultList())
+    			members.computeIfAbsent(tuple.get(0, Long.class), key -> new HashSet<>()).add(tuple.get(1, Long.class));
+    	}
+
+    	return members;
+    }
+
+}
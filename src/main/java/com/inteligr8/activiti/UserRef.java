@@ -0,0 +1,84 @@
+/*
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.inteligr8.activiti;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.activiti.domain.idm.User;
+
+/**
+ * An immutable, detached summary of an APS user and, optionally, the groups
+ * they are a member of.  This is what is held in memory instead of the JPA
+ * entity.
+ *
+ * @author brian@inteligr8.com
+ */
+public class UserRef {
+
+	public static UserRef of(User user) {
+		return new UserRef(user.getId(), user.getEmail(), user.getExternalId(), user.getExternalOriginalSrc(), null);
+	}
+
+	private final Long id;
+	private final String email;
+	private final String externalId;
+	private final String externalOriginalSrc;
+	private final List<GroupRef> groups;
+
+	/**
+	 * @param groups The groups the user is a member of; null if not known
+	 */
+	public UserRef(Long id, String email, String externalId, String externalOriginalSrc, List<GroupRef> groups) {
+		this.id = id;
+		this.email = email;
+		this.externalId = externalId;
+		this.externalOriginalSrc = externalOriginalSrc;
+		this.groups = groups == null ? null : Collections.unmodifiableList(groups);
+	}
+
+	public Long getId() {
+		return this.id;
+	}
+
+	public String getEmail() {
+		return this.email;
+	}
+
+	public String getExternalId() {
+		return this.externalId;
+	}
+
+	public String getExternalOriginalSrc() {
+		return this.externalOriginalSrc;
+	}
+
+	/**
+	 * @return The groups the user is a member of; null if not known
+	 */
+	public List<GroupRef> getGroups() {
+		return this.groups;
+	}
+
+	public UserRef withGroups(List<GroupRef> groups) {
+		return new UserRef(this.id, this.email, this.externalId, this.externalOriginalSrc, groups);
+	}
+
+	@Override
+	public String toString() {
+		return this.id + " [" + this.externalId + "]";
+	}
+
+}
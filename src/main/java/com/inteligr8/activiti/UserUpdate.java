@@ -0,0 +1,54 @@
+/*
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.inteligr8.activiti;
+
+import java.util.Date;
+
+/**
+ * An immutable summary of an update to an APS user; only what is needed to
+ * tell the caches of other nodes which user changed.
+ *
+ * @author brian@inteligr8.com
+ */
+public class UserUpdate {
+
+	private final Long tenantId;
+	private final String email;
+	private final Date lastUpdate;
+
+	public UserUpdate(Long tenantId, String email, Date lastUpdate) {
+		this.tenantId = tenantId;
+		this.email = email;
+		this.lastUpdate = lastUpdate;
+	}
+
+	public Long getTenantId() {
+		return this.tenantId;
+	}
+
+	public String getEmail() {
+		return this.email;
+	}
+
+	public Date getLastUpdate() {
+		return this.lastUpdate;
+	}
+
+	@Override
+	public String toString() {
+		return this.email + " [" + this.tenantId + "] @ " + this.lastUpdate;
+	}
+
+}
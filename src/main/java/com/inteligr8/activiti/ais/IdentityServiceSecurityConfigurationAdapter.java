@@ -30,6 +30,8 @@ import com.activiti.security.identity.service.authentication.provider.IdentitySe
 import com.inteligr8.activiti.ActivitiSecurityConfigAdapter;
 import com.inteligr8.activiti.auth.Authenticator;
 import com.inteligr8.activiti.auth.InterceptingAuthenticationProvider;
+import com.inteligr8.activiti.auth.PostAuthenticationExecutor;
+import com.inteligr8.activiti.metrics.MetricsService;
 
 /**
  * This class/bean injects a custom AIS authentication provider into the
@@ -50,6 +52,9 @@ public class IdentityServiceSecurityConfigurationAdapter implements ActivitiSecu
     @Value("${keycloak-ext.ais.priority:-10}")
     private int priority;
     
+    @Value("${keycloak-ext.singleFlight.waitMillis:3000}")
+    private long singleFlightWaitMillis;
+    
     @Autowired
     protected MsmtProperties msmtProperties;
 
@@ -60,6 +65,12 @@ public class IdentityServiceSecurityConfigurationAdapter implements ActivitiSecu
     @Qualifier("keycloak-ext.activiti-app.authenticator")
     private Authenticator authenticator;
     
+    @Autowired
+    private PostAuthenticationExecutor postAuthExecutor;
+    
+    @Autowired
+    private MetricsService metrics;
+    
     protected Authenticator getAuthenticator() {
 		return this.authenticator;
 	}
@@ -86,7 +97,7 @@ public class IdentityServiceSecurityConfigurationAdapter implements ActivitiSecu
         provider.setUserDetailsService(userDetailsService);
 		provider.setGrantedAuthoritiesMapper(new SimpleAuthorityMapper());
 
-		auth.authenticationProvider(new InterceptingAuthenticationProvider(provider, this.getAuthenticator()));
+		auth.authenticationProvider(new InterceptingAuthenticationProvider(provider, this.getAuthenticator(), this.postAuthExecutor, this.metrics, this.singleFlightWaitMillis));
 	}
 
 }
@@ -0,0 +1,177 @@
+/*
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.inteligr8.activiti.auth;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class limits how much of the same kind of work, like work holding a
+ * database connection, is executed at a time.  A caller waits a limited time
+ * for a permit; if none is available by then, the overflow policy decides
+ * what happens to the work:
+ *
+ * - `SKIP`: the work is not executed; the caller must handle that
+ * - `QUEUE`: the work is queued on a bounded thread pool, which executes it
+ *   with a permit as soon as one is available.  If the same key is queued
+ *   again while still queued, only the newest work is executed.  When the
+ *   queue is full, the work is skipped instead.
+ *
+ * Queued work and the callers share the same permits, so no more than the
+ * permitted work is ever executed at a time.
+ *
+ * @author brian@inteligr8.com
+ */
+public class AdmissionLimiter {
+
+	public enum OverflowPolicy {
+		SKIP,
+		QUEUE
+	}
+
+	public enum Outcome {
+		EXECUTED,
+		QUEUED,
+		SKIPPED
+	}
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final String name;
+    private final Semaphore permits;
+    private final long waitMillis;
+    private final ConcurrentMap<String, Runnable> pending = new ConcurrentHashMap<>();
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * @param name A name for the work, used for logging and thread names
+     * @param permits The maximum amount of work to execute at a time; `0` or less for no limit
+     * @param waitMillis The maximum time a caller waits for a permit before applying the overflow policy
+     * @param overflowPolicy What to do with the work when no permit is available in time
+     * @param queueDepth The maximum amount of queued work; only for the `QUEUE` policy
+     */
+    public AdmissionLimiter(String name, int permits, long waitMillis, OverflowPolicy overflowPolicy, int queueDepth) {
+    	this.name = name;
+    	this.permits = permits > 0 ? new Semaphore(permits, true) : null;
+    	this.waitMillis = waitMillis;
+
+    	if (this.permits != null && overflowPolicy == OverflowPolicy.QUEUE) {
+    		// more threads than permits would only wait on the permits
+    		AtomicInteger count = new AtomicInteger();
+    		this.executor = new ThreadPoolExecutor(permits, permits, 60L, TimeUnit.SECONDS,
+    				new ArrayBlockingQueue<>(queueDepth), runnable -> {
+    					Thread thread = new Thread(runnable, "keycloak-ext-" + name + "-" + count.incrementAndGet());
+    					thread.setDaemon(true);
+    					return thread;
+    				});
+    	} else {
+    		this.executor = null;
+    	}
+    }
+
+    public void destroy() {
+    	if (this.executor != null)
+    		this.executor.shutdownNow();
+    }
+
+    /**
+     * @param key A key identifying the work, like a user name; queued work with the same key is merged
+     * @param work The work to execute
+     * @return How the work was handled
+     */
+    public Outcome execute(String key, Runnable work) {
+    	if (this.permits == null) {
+    		work.run();
+    		return Outcome.EXECUTED;
+    	}
+
+    	try {
+    		if (!this.permits.tryAcquire(this.waitMillis, TimeUnit.MILLISECONDS))
+    			return this.overflow(key, work);
+    	} catch (InterruptedException ie) {
+    		Thread.currentThread().interrupt();
+    		return Outcome.SKIPPED;
+    	}
+
+    	try {
+    		work.run();
+    		return Outcome.EXECUTED;
+    	} finally {
+    		this.permits.release();
+    	}
+    }
+
+    private Outcome overflow(String key, Runnable work) {
+    	if (this.executor == null) {
+    		this.logger.debug("No {} permit became available in time; skipping: {}", this.name, key);
+    		return Outcome.SKIPPED;
+    	}
+
+    	// merging and queueing are atomic per key, so a rejection never drops work merged meanwhile
+    	boolean[] merged = new boolean[1];
+    	Runnable queued = this.pending.compute(key, (k, pendingWork) -> {
+    		if (pendingWork != null) {
+    			merged[0] = true;
+    			return work;
+    		}
+
+    		try {
+    			this.executor.execute(() -> this.run(key));
+    			return work;
+    		} catch (RejectedExecutionException ree) {
+    			return null;
+    		}
+    	});
+
+    	if (queued == null) {
+    		this.logger.debug("The {} queue is full; skipping: {}", this.name, key);
+    		return Outcome.SKIPPED;
+    	} else if (merged[0]) {
+    		this.logger.debug("Merged {} work with queued work: {}", this.name, key);
+    	} else {
+    		this.logger.debug("No {} permit became available in time; queued: {}", this.name, key);
+    	}
+    	return Outcome.QUEUED;
+    }
+
+    private void run(String key) {
+    	try {
+    		this.permits.acquire();
+    	} catch (InterruptedException ie) {
+    		// shutting down
+    		return;
+    	}
+
+    	try {
+    		Runnable work = this.pending.remove(key);
+    		if (work != null)
+    			work.run();
+    	} catch (RuntimeException re) {
+    		this.logger.error("The queued {} work failed: {}", this.name, key, re);
+    	} finally {
+    		this.permits.release();
+    	}
+    }
+
+}
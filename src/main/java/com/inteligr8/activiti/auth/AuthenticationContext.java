@@ -0,0 +1,100 @@
+/*
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.inteligr8.activiti.auth;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.springframework.security.core.Authentication;
+
+/**
+ * This class holds what is learned about a single authentication, so the
+ * pre and post-authentication hooks do not determine the same things twice.
+ * It is created once per authentication by the
+ * `InterceptingAuthenticationProvider`.
+ * 
+ * Each property is populated by the first hook to determine it.  A property
+ * that is not populated is simply not yet known; it is not an error.  An
+ * instance is only ever used by one thread at a time.
+ * 
+ * Anything specific to an `Authenticator` implementation, like the security
+ * context of its identity provider, is held as a named attribute.
+ * 
+ * @author brian@inteligr8.com
+ */
+public class AuthenticationContext {
+	
+	private Authentication authentication;
+	private boolean tenantResolved;
+	private Long tenantId;
+	private Map<String, String> roles;
+	private final Map<String, Object> attributes = new HashMap<>();
+	
+	public AuthenticationContext(Authentication authentication) {
+		this.authentication = authentication;
+	}
+	
+	/**
+	 * @return The authentication before the delegate provider authenticates it; the authenticated one after
+	 */
+	public Authentication getAuthentication() {
+		return this.authentication;
+	}
+	
+	public void setAuthentication(Authentication authentication) {
+		this.authentication = authentication;
+	}
+	
+	/**
+	 * @return true if the tenant has been resolved; the tenant ID may still be null
+	 */
+	public boolean isTenantResolved() {
+		return this.tenantResolved;
+	}
+	
+	public Long getTenantId() {
+		return this.tenantId;
+	}
+	
+	public void setTenantId(Long tenantId) {
+		this.tenantId = tenantId;
+		this.tenantResolved = true;
+	}
+	
+	/**
+	 * @return The mapped roles of the user; null if not yet known
+	 */
+	public Map<String, String> getRoles() {
+		return this.roles;
+	}
+	
+	public void setRoles(Map<String, String> roles) {
+		this.roles = roles;
+	}
+	
+	/**
+	 * @param name An attribute name; prefixed by its owner to avoid collisions
+	 * @param type The type of the attribute value
+	 * @return The attribute value; null if not yet known
+	 */
+	public <T> T getAttribute(String name, Class<T> type) {
+		return type.cast(this.attributes.get(name));
+	}
+	
+	public void setAttribute(String name, Object value) {
+		this.attributes.put(name, value);
+	}
+	
+}
@@ -25,4 +25,19 @@ public interface Authenticator {
     default void postAuthenticate(Authentication authentication) throws AuthenticationException {
     }
     
+    /**
+     * Authenticators that can reuse what is learned between the hooks should
+     * override this method; the default just calls the authentication hook.
+     */
+    default void preAuthenticate(AuthenticationContext context) throws AuthenticationException {
+    	this.preAuthenticate(context.getAuthentication());
+    }
+    
+    /**
+     * @see #preAuthenticate(AuthenticationContext)
+     */
+    default void postAuthenticate(AuthenticationContext context) throws AuthenticationException {
+    	this.postAuthenticate(context.getAuthentication());
+    }
+    
 }
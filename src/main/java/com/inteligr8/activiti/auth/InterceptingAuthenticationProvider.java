@@ -20,23 +20,70 @@ import org.springframework.security.authentication.AuthenticationProvider;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.AuthenticationException;
 
+import com.inteligr8.activiti.metrics.MetricsService;
+
 /**
  * This class/bean provides a pre/post authentication capability to the
  * Spring AuthenticationProvider.  The pre-authentication hook allows us to
  * circumvent the problem with authenticating missing users.  The
  * post-authentication hook allow us to synchronize groups/authorities.
  * 
+ * Both hooks share one `AuthenticationContext` per authentication.
+ * 
+ * Concurrent authentications of the same user, which are common when a client
+ * fires several requests at once, share a single execution of each hook.
+ * A concurrent authentication only waits so long for the shared execution
+ * before executing the hook itself, so a stuck execution cannot hold every
+ * login of the user for long.
+ * 
+ * The latency of each hook and of the delegate provider are recorded
+ * separately, when metrics are provided.
+ * 
  * @author brian@inteligr8.com
  */
 public class InterceptingAuthenticationProvider implements AuthenticationProvider {
+	
+	public static final long DEFAULT_SINGLE_FLIGHT_WAIT_MILLIS = 3000L;
 
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
     private final AuthenticationProvider provider;
     private final Authenticator authenticator;
+    private final PostAuthenticationExecutor postAuthExecutor;
+    private final MetricsService metrics;
+    private final SingleFlight preAuthFlights;
+    private final SingleFlight postAuthFlights;
     
     public InterceptingAuthenticationProvider(AuthenticationProvider provider, Authenticator authenticator) {
+    	this(provider, authenticator, null);
+	}
+    
+    /**
+     * @param postAuthExecutor An executor for the post-authentication hook; null to always execute it inline
+     */
+    public InterceptingAuthenticationProvider(AuthenticationProvider provider, Authenticator authenticator, PostAuthenticationExecutor postAuthExecutor) {
+    	this(provider, authenticator, postAuthExecutor, null);
+	}
+    
+    /**
+     * @param postAuthExecutor An executor for the post-authentication hook; null to always execute it inline
+     * @param metrics A metrics service to record the latency of each phase; null to not record metrics
+     */
+    public InterceptingAuthenticationProvider(AuthenticationProvider provider, Authenticator authenticator, PostAuthenticationExecutor postAuthExecutor, MetricsService metrics) {
+    	this(provider, authenticator, postAuthExecutor, metrics, DEFAULT_SINGLE_FLIGHT_WAIT_MILLIS);
+	}
+    
+    /**
+     * @param postAuthExecutor An executor for the post-authentication hook; null to always execute it inline
+     * @param metrics A metrics service to record the latency of each phase; null to not record metrics
+     * @param singleFlightWaitMillis The maximum time a concurrent authentication of the same user waits for a shared hook execution
+     */
+    public InterceptingAuthenticationProvider(AuthenticationProvider provider, Authenticator authenticator, PostAuthenticationExecutor postAuthExecutor, MetricsService metrics, long singleFlightWaitMillis) {
     	this.provider = provider;
     	this.authenticator = authenticator;
+    	this.postAuthExecutor = postAuthExecutor;
+    	this.metrics = metrics;
+    	this.preAuthFlights = new SingleFlight(singleFlightWaitMillis);
+    	this.postAuthFlights = new SingleFlight(singleFlightWaitMillis);
 	}
     
     @Override
@@ -48,16 +95,44 @@ public class InterceptingAuthenticationProvider implements AuthenticationProvide
     public Authentication authenticate(Authentication auth) throws AuthenticationException {
 		this.logger.trace("authenticate({})", auth.getName());
 		
-		this.authenticator.preAuthenticate(auth);
+		AuthenticationContext context = new AuthenticationContext(auth);
+		long startNanos = System.nanoTime();
+		try {
+			this.preAuthFlights.execute(auth.getName(), () -> this.authenticator.preAuthenticate(context));
+		} finally {
+			this.record(MetricsService.PRE_AUTHENTICATE, startNanos);
+		}
     	this.logger.debug("Pre-authenticated user: {}", auth.getName());
     	
-    	auth = this.provider.authenticate(auth);
+    	startNanos = System.nanoTime();
+    	try {
+    		auth = this.provider.authenticate(auth);
+    	} finally {
+    		this.record(MetricsService.AUTHENTICATE, startNanos);
+    	}
     	this.logger.debug("Authenticated user '{}' with authorities: {}", auth.getName(), auth.getAuthorities());
+    	context.setAuthentication(auth);
     	
-    	this.authenticator.postAuthenticate(auth);
+    	startNanos = System.nanoTime();
+    	try {
+	    	this.postAuthFlights.execute(auth.getName(), () -> {
+	        	if (this.postAuthExecutor == null) {
+	        		this.authenticator.postAuthenticate(context);
+	        	} else {
+	        		this.postAuthExecutor.execute(context, this.authenticator);
+	        	}
+	    	});
+    	} finally {
+    		this.record(MetricsService.POST_AUTHENTICATE, startNanos);
+    	}
     	this.logger.debug("Post-authenticated user: {}", auth.getName());
     	
     	return auth;
     }
     
+    private void record(String name, long startNanos) {
+    	if (this.metrics != null)
+    		this.metrics.recordSince(name, startNanos);
+    }
+    
 }
@@ -0,0 +1,162 @@
+/*
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.inteligr8.activiti.auth;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.core.Authentication;
+import org.springframework.stereotype.Component;
+
+/**
+ * This class/bean optionally moves the post-authentication work off of the
+ * login request thread.  The work is queued on a bounded thread pool.  If a
+ * user logs in again while their previous work is still queued, the two are
+ * merged and only the newest authentication is processed.
+ *
+ * When the queue is full, the work is executed inline, as if this were
+ * disabled.
+ *
+ * Since the work is asynchronous, the user's first request may be served
+ * before their groups are synchronized.  Any exception is logged instead of
+ * failing the login.
+ *
+ * @author brian@inteligr8.com
+ */
+@Component
+public class PostAuthenticationExecutor implements InitializingBean, DisposableBean {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Value("${keycloak-ext.postAuthenticate.async.enabled:false}")
+    private boolean enabled;
+
+    @Value("${keycloak-ext.postAuthenticate.async.poolSize:2}")
+    private int poolSize;
+
+    @Value("${keycloak-ext.postAuthenticate.async.queueDepth:1000}")
+    private int queueDepth;
+
+    private final ConcurrentMap<String, PendingWork> pending = new ConcurrentHashMap<>();
+    private ThreadPoolExecutor executor;
+
+    @Override
+    public void afterPropertiesSet() {
+    	if (!this.enabled)
+    		return;
+
+    	this.logger.info("Post-authentication will be asynchronous: {} threads; {} queue depth", this.poolSize, this.queueDepth);
+    	this.executor = new ThreadPoolExecutor(this.poolSize, this.poolSize, 60L, TimeUnit.SECONDS,
+    			new ArrayBlockingQueue<>(this.queueDepth), new DaemonThreadFactory());
+    }
+
+    @Override
+    public void destroy() {
+    	if (this.executor != null)
+    		this.executor.shutdownNow();
+    }
+
+    public boolean isEnabled() {
+		return this.enabled;
+	}
+
+    /**
+     * @see #execute(AuthenticationContext, Authenticator)
+     */
+    public void execute(Authentication auth, Authenticator authenticator) {
+    	this.execute(new AuthenticationContext(auth), authenticator);
+    }
+
+    /**
+     * This method executes the post-authentication of the specified
+     * authenticator, asynchronously when enabled.
+     */
+    public void execute(AuthenticationContext context, Authenticator authenticator) {
+    	if (this.executor == null) {
+    		authenticator.postAuthenticate(context);
+    		return;
+    	}
+
+    	String key = context.getAuthentication().getName();
+    	PendingWork work = new PendingWork(context, authenticator);
+    	if (this.pending.put(key, work) != null) {
+    		// an earlier login is still queued; it will pick up this newer authentication
+    		this.logger.debug("Merged post-authentication with queued work: {}", key);
+    		return;
+    	}
+
+    	try {
+    		this.executor.execute(() -> this.run(key));
+    		this.logger.trace("Queued post-authentication: {}", key);
+    	} catch (RejectedExecutionException ree) {
+    		this.logger.debug("The post-authentication queue is full; executing inline: {}", key);
+    		PendingWork latestWork = this.pending.remove(key);
+    		if (latestWork != null)
+    			latestWork.authenticator.postAuthenticate(latestWork.context);
+    	}
+    }
+
+    private void run(String key) {
+    	PendingWork work = this.pending.remove(key);
+    	if (work == null)
+    		return;
+
+    	try {
+    		work.authenticator.postAuthenticate(work.context);
+    		this.logger.debug("Post-authenticated user asynchronously: {}", key);
+    	} catch (RuntimeException re) {
+    		this.logger.error("The asynchronous post-authentication failed: {}", key, re);
+    	}
+    }
+
+
+
+    private static class PendingWork {
+
+    	private final AuthenticationContext context;
+    	private final Authenticator authenticator;
+
+    	PendingWork(AuthenticationContext context, Authenticator authenticator) {
+    		this.context = context;
+    		this.authenticator = authenticator;
+    	}
+
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+
+    	private final AtomicInteger count = new AtomicInteger();
+
+    	@Override
+    	public Thread newThread(Runnable runnable) {
+    		Thread thread = new Thread(runnable, "keycloak-ext-postauth-" + this.count.incrementAndGet());
+    		thread.setDaemon(true);
+    		return thread;
+    	}
+
+    }
+
+}
@@ -0,0 +1,106 @@
+/*
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.inteligr8.activiti.auth;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class makes sure the same work for the same key is only executed once
+ * at a time.  The first caller executes the work; concurrent callers with the
+ * same key wait for it to finish and then reuse its outcome instead of
+ * executing the work themselves.
+ *
+ * Only work that is in flight is tracked, so memory is bounded by the number
+ * of concurrent callers, no matter how many distinct keys are ever used.
+ *
+ * If the work fails, or takes longer than the callers are willing to wait,
+ * the waiting callers execute the work themselves.
+ *
+ * @author brian@inteligr8.com
+ */
+public class SingleFlight {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final ConcurrentMap<String, CompletableFuture<Void>> inFlight = new ConcurrentHashMap<>();
+    private final long waitMillis;
+
+    /**
+     * @param waitMillis The maximum time a caller waits for work in flight before executing it themselves
+     */
+    public SingleFlight(long waitMillis) {
+    	this.waitMillis = waitMillis;
+    }
+
+    /**
+     * @param key A key identifying the work, like a user name; null to never share the work
+     * @param work The work to execute
+     */
+    public void execute(String key, Runnable work) {
+    	if (key == null) {
+    		work.run();
+    		return;
+    	}
+    	
+    	CompletableFuture<Void> flight = new CompletableFuture<>();
+    	CompletableFuture<Void> otherFlight = this.inFlight.putIfAbsent(key, flight);
+    	if (otherFlight != null) {
+    		if (this.await(key, otherFlight))
+    			return;
+
+    		// the other flight did not work out; do it ourselves, without tracking it
+    		work.run();
+    		return;
+    	}
+
+    	try {
+    		work.run();
+    		flight.complete(null);
+    	} catch (RuntimeException | Error e) {
+    		flight.completeExceptionally(e);
+    		throw e;
+    	} finally {
+    		this.inFlight.remove(key, flight);
+    	}
+    }
+
+    private boolean await(String key, CompletableFuture<Void> flight) {
+    	this.logger.trace("Waiting on work already in flight: {}", key);
+
+    	try {
+    		flight.get(this.waitMillis, TimeUnit.MILLISECONDS);
+    		this.logger.debug("Reused work completed by a concurrent caller: {}", key);
+    		return true;
+    	} catch (ExecutionException ee) {
+    		this.logger.debug("The work of a concurrent caller failed; retrying: {}", key);
+    		return false;
+    	} catch (TimeoutException te) {
+    		this.logger.debug("The work of a concurrent caller is taking too long; proceeding: {}", key);
+    		return false;
+    	} catch (InterruptedException ie) {
+    		Thread.currentThread().interrupt();
+    		return false;
+    	}
+    }
+
+}
@@ -14,7 +14,9 @@
  */
 package com.inteligr8.activiti.keycloak;
 
+import java.io.IOException;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -23,7 +25,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.annotation.OverridingMethodsMustInvokeSuper;
@@ -42,10 +43,14 @@ import org.springframework.data.util.Pair;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.GrantedAuthority;
 
+import com.inteligr8.activiti.auth.AuthenticationContext;
 import com.inteligr8.activiti.auth.Authenticator;
 
 public abstract class AbstractKeycloakActivitiAuthenticator implements Authenticator, InitializingBean {
 	
+	/** The `AuthenticationContext` attribute holding the `KeycloakSecurityContext` */
+	protected static final String CONTEXT_SECURITY_CONTEXT = "keycloak.securityContext";
+	
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
     
     @Value("${keycloak-ext.createMissingUser:true}")
@@ -81,49 +86,111 @@ public abstract class AbstractKeycloakActivitiAuthenticator implements Authentic
     @Value("${keycloak-ext.group.exclude.regex.patterns:#{null}}")
     protected String regexExcludes;
     
+    @Value("${keycloak-ext.group.mapping.cache.maxSize:50000}")
+    protected int roleMappingCacheMaxSize;
+    
+    @Value("${keycloak-ext.token.streaming.minLength:16384}")
+    protected int tokenStreamingMinLength;
+    
     protected final List<Pair<Pattern, String>> groupFormatters = new LinkedList<>();
     protected final Set<Pattern> resourceIncludes = new HashSet<>();
     protected final Set<Pattern> groupIncludes = new HashSet<>();
     protected final Set<Pattern> groupExcludes = new HashSet<>();
     
+    protected RoleMappingEngine roleMappingEngine;
+    private RoleMappingEngine.RuleSet resourceRules;
+    private TokenRoleReader tokenRoleReader;
+    
     @Override
     @OverridingMethodsMustInvokeSuper
     public void afterPropertiesSet() {
-    	if (this.regexPatterns != null) {
-    		String[] regexPatternStrs = StringUtils.split(this.regexPatterns, ',');
-    		String[] regexReplaceStrs = this.regexReplacements == null ? new String[0] : StringUtils.split(this.regexReplacements, ",");
-    		for (int i = 0; i < regexPatternStrs.length; i++) {
-    			Pattern regexPattern = Pattern.compile(regexPatternStrs[i]);
-    			String regexReplace = (i < regexReplaceStrs.length) ? regexReplaceStrs[i] : "";
-    	    	this.groupFormatters.add(Pair.of(regexPattern, regexReplace));
-    		}
-    	}
+    	this.compileFormatters(this.regexPatterns, this.regexReplacements, this.groupFormatters);
+    	this.compilePatterns(this.resourceRegexIncludes, this.resourceIncludes);
+    	this.compilePatterns(this.regexIncludes, this.groupIncludes);
+    	this.compilePatterns(this.regexExcludes, this.groupExcludes);
     	
-    	if (this.resourceRegexIncludes != null) {
-    		String[] regexPatternStrs = StringUtils.split(this.resourceRegexIncludes, ',');
-    		for (int i = 0; i < regexPatternStrs.length; i++)
-    			this.resourceIncludes.add(Pattern.compile(regexPatternStrs[i]));
-    	}
+    	this.resourceRules = new RoleMappingEngine.RuleSet(this.resourceIncludes);
+    	this.roleMappingEngine = new RoleMappingEngine(this.groupIncludes, this.groupExcludes, this.groupFormatters,
+    			this.getCapabilityIncludes(), this.roleMappingCacheMaxSize);
+    	this.tokenRoleReader = new TokenRoleReader(this::includeResource);
+    }
+    
+    /**
+     * @param regexPatterns A comma-delimited list of regular expressions; may be null
+     * @param patterns The collection to add the compiled patterns to
+     */
+    protected void compilePatterns(String regexPatterns, Collection<Pattern> patterns) {
+    	if (regexPatterns == null)
+    		return;
     	
-    	if (this.regexIncludes != null) {
-    		String[] regexPatternStrs = StringUtils.split(this.regexIncludes, ',');
-    		for (int i = 0; i < regexPatternStrs.length; i++)
-    			this.groupIncludes.add(Pattern.compile(regexPatternStrs[i]));
-    	}
+		String[] regexPatternStrs = StringUtils.split(regexPatterns, ',');
+		for (int i = 0; i < regexPatternStrs.length; i++)
+			patterns.add(Pattern.compile(regexPatternStrs[i]));
+    }
+    
+    /**
+     * @param regexPatterns A comma-delimited list of regular expressions; may be null
+     * @param regexReplacements A comma-delimited list of replacements, aligned with the expressions; may be null
+     * @param formatters The collection to add the compiled formatters to
+     */
+    protected void compileFormatters(String regexPatterns, String regexReplacements, Collection<Pair<Pattern, String>> formatters) {
+    	if (regexPatterns == null)
+    		return;
     	
-    	if (this.regexExcludes != null) {
-    		String[] regexPatternStrs = StringUtils.split(this.regexExcludes, ',');
-    		for (int i = 0; i < regexPatternStrs.length; i++)
-    			this.groupExcludes.add(Pattern.compile(regexPatternStrs[i]));
-    	}
+		String[] regexPatternStrs = StringUtils.split(regexPatterns, ',');
+		String[] regexReplaceStrs = regexReplacements == null ? new String[0] : StringUtils.split(regexReplacements, ",");
+		for (int i = 0; i < regexPatternStrs.length; i++) {
+			Pattern regexPattern = Pattern.compile(regexPatternStrs[i]);
+			String regexReplace = (i < regexReplaceStrs.length) ? regexReplaceStrs[i] : "";
+	    	formatters.add(Pair.of(regexPattern, regexReplace));
+		}
     }
     
-
+    /**
+     * @return Patterns of roles that should be synchronized as capabilities instead of organizations
+     */
+    protected Collection<Pattern> getCapabilityIncludes() {
+    	return Collections.emptySet();
+    }
+    
+    public RoleMappingEngine getRoleMappingEngine() {
+		return this.roleMappingEngine;
+	}
     
     protected Map<String, String> getKeycloakRoles(Authentication auth) {
+    	return this.getKeycloakRoles(auth, this.roleMappingEngine);
+    }
+    
+    /**
+     * @param engine The rules to apply to the roles
+     */
+    protected Map<String, String> getKeycloakRoles(Authentication auth, RoleMappingEngine engine) {
+    	return this.getKeycloakRoles(this.getKeycloakSecurityContext(auth), engine);
+    }
+    
+    /**
+     * @param ksc A Keycloak security context; may be null
+     * @param engine The rules to apply to the roles
+     */
+    protected Map<String, String> getKeycloakRoles(KeycloakSecurityContext ksc, RoleMappingEngine engine) {
+    	String tokenString = ksc == null ? null : ksc.getTokenString();
+    	if (tokenString != null && this.tokenStreamingMinLength >= 0 && tokenString.length() >= this.tokenStreamingMinLength) {
+    		try {
+    			Map<String, String> authorities = this.tokenRoleReader.read(tokenString, engine);
+    			if (authorities == null) {
+    				this.logger.debug("Access token has no role information");
+    			} else {
+    				this.logger.debug("Access token authorities: {}", authorities);
+    			}
+    			return authorities;
+    		} catch (IOException ie) {
+    			this.logger.warn("The raw access token could not be read; using the parsed token: {}", ie.getMessage());
+    		}
+    	}
+    	
     	Map<String, String> authorities = new HashMap<>();
 		
-		AccessToken atoken = this.getKeycloakAccessToken(auth);
+		AccessToken atoken = ksc == null ? null : ksc.getToken();
 		if (atoken == null) {
 			this.logger.debug("Access token not available");
 			return null;
@@ -133,16 +200,16 @@ public abstract class AbstractKeycloakActivitiAuthenticator implements Authentic
 		} else {
 			if (atoken.getRealmAccess() != null) {
 				this.logger.debug("Access token realm roles: {}", atoken.getRealmAccess().getRoles());
-				Collection<String> roles = this.filterRoles(atoken.getRealmAccess().getRoles());
-				Map<String, String> mappedRoles = this.formatRoles(roles);
+				Collection<String> roles = this.filterRoles(atoken.getRealmAccess().getRoles(), engine);
+				Map<String, String> mappedRoles = this.formatRoles(roles, engine);
 				authorities.putAll(mappedRoles);
 			}
 			
 			for (Entry<String, Access> resourceAccess : atoken.getResourceAccess().entrySet()) {
 				if (this.includeResource(resourceAccess.getKey())) {
 					this.logger.debug("Access token resources '{}' roles: {}", resourceAccess.getKey(), resourceAccess.getValue().getRoles());
-					Collection<String> roles = this.filterRoles(resourceAccess.getValue().getRoles());
-					Map<String, String> mappedRoles = this.formatRoles(roles);
+					Collection<String> roles = this.filterRoles(resourceAccess.getValue().getRoles(), engine);
+					Map<String, String> mappedRoles = this.formatRoles(roles, engine);
 					authorities.putAll(mappedRoles);
 				}
 			}
@@ -153,74 +220,69 @@ public abstract class AbstractKeycloakActivitiAuthenticator implements Authentic
 		return authorities;
     }
     
-    private Collection<String> filterRoles(Collection<String> unfilteredRoles) {
-		if (this.groupIncludes.isEmpty() && this.groupExcludes.isEmpty())
+    /**
+     * This method applies the same rules as `getKeycloakRoles()` to roles
+     * that did not come from an access token.
+     * 
+     * @param realmRoles Realm roles; may be null
+     * @param resourceRoles Client/resource roles, keyed by the client ID; may be null
+     * @return A map of the included roles to their formatted role
+     */
+    protected Map<String, String> mapRoles(Collection<String> realmRoles, Map<String, ? extends Collection<String>> resourceRoles) {
+    	return this.mapRoles(realmRoles, resourceRoles, this.roleMappingEngine);
+    }
+    
+    /**
+     * @param engine The rules to apply to the roles
+     */
+    protected Map<String, String> mapRoles(Collection<String> realmRoles, Map<String, ? extends Collection<String>> resourceRoles, RoleMappingEngine engine) {
+    	Map<String, String> authorities = new HashMap<>();
+    	
+    	if (realmRoles != null)
+    		authorities.putAll(this.formatRoles(this.filterRoles(realmRoles, engine), engine));
+    	
+    	if (resourceRoles != null) {
+    		for (Entry<String, ? extends Collection<String>> resourceAccess : resourceRoles.entrySet())
+    			if (this.includeResource(resourceAccess.getKey()))
+    				authorities.putAll(this.formatRoles(this.filterRoles(resourceAccess.getValue(), engine), engine));
+    	}
+    	
+    	return authorities;
+    }
+    
+    protected Collection<String> filterRoles(Collection<String> unfilteredRoles) {
+    	return this.filterRoles(unfilteredRoles, this.roleMappingEngine);
+    }
+    
+    protected Collection<String> filterRoles(Collection<String> unfilteredRoles, RoleMappingEngine engine) {
+		if (!engine.isFiltering())
 			return unfilteredRoles;
 		
     	Set<String> filteredRoles = new HashSet<>(unfilteredRoles.size());
     	
     	for (String role : unfilteredRoles) {
-    		boolean doInclude = this.groupIncludes.isEmpty();
-    		for (Pattern regex : this.groupIncludes) {
-    			Matcher matcher = regex.matcher(role);
-    			if (matcher.matches()) {
-    				this.logger.debug("Role matched inclusion filter: {}", role);
-    				doInclude = true;
-    				break;
-    			}
-    		}
-    		
-    		if (doInclude) {
-    			for (Pattern regex : this.groupExcludes) {
-        			Matcher matcher = regex.matcher(role);
-        			if (matcher.matches()) {
-        				this.logger.debug("Role matched exclusion filter: {}", role);
-        				doInclude = false;
-        				break;
-        			}
-        		}
-    			
-    			if (doInclude)
-    				filteredRoles.add(role);
-    		}
+    		if (engine.map(role).isIncluded())
+    			filteredRoles.add(role);
     	}
     	
     	return filteredRoles;
     }
     
-    private Map<String, String> formatRoles(Collection<String> unformattedRoles) {
+    protected Map<String, String> formatRoles(Collection<String> unformattedRoles) {
+    	return this.formatRoles(unformattedRoles, this.roleMappingEngine);
+    }
+    
+    protected Map<String, String> formatRoles(Collection<String> unformattedRoles, RoleMappingEngine engine) {
     	Map<String, String> formattedRoles = new HashMap<>(unformattedRoles.size());
     	
-    	for (String unformattedRole : unformattedRoles) {
-    		String formattedRole = null;
-    		
-    		for (Pair<Pattern, String> regex : this.groupFormatters) {
-    			Matcher matcher = regex.getFirst().matcher(unformattedRole);
-    			if (matcher.matches()) {
-    				this.logger.trace("Role matched formatter: {}", unformattedRole);
-    				formattedRole = matcher.replaceFirst(regex.getSecond());
-    				this.logger.debug("Role formatted: {}", formattedRole);
-    				break;
-    			}
-    		}
-    		
-    		formattedRoles.put(unformattedRole, formattedRole == null ? unformattedRole : formattedRole);
-    	}
+    	for (String unformattedRole : unformattedRoles)
+    		formattedRoles.put(unformattedRole, engine.map(unformattedRole).getFormatted());
     	
     	return formattedRoles;
     }
     
-    private boolean includeResource(String resource) {
-		if (this.resourceIncludes.isEmpty())
-			return true;
-		
-		for (Pattern resourceInclude : this.resourceIncludes) {
-			Matcher matcher = resourceInclude.matcher(resource);
-			if (matcher.matches())
-				return true;
-		}
-		
-		return false;
+    protected boolean includeResource(String resource) {
+		return this.resourceRules.isEmpty() || this.resourceRules.matches(resource);
     }
     
     protected AccessToken getKeycloakAccessToken(Authentication auth) {
@@ -228,6 +290,18 @@ public abstract class AbstractKeycloakActivitiAuthenticator implements Authentic
     	return ksc == null ? null : ksc.getToken();
     }
     
+    /**
+     * @return The Keycloak security context of the authentication; determined only once per context
+     */
+    protected KeycloakSecurityContext getKeycloakSecurityContext(AuthenticationContext context) {
+    	KeycloakSecurityContext ksc = context.getAttribute(CONTEXT_SECURITY_CONTEXT, KeycloakSecurityContext.class);
+    	if (ksc == null) {
+    		ksc = this.getKeycloakSecurityContext(context.getAuthentication());
+    		context.setAttribute(CONTEXT_SECURITY_CONTEXT, ksc);
+    	}
+    	return ksc;
+    }
+    
     @SuppressWarnings("unchecked")
 	protected KeycloakSecurityContext getKeycloakSecurityContext(Authentication auth) {
 		if (auth.getCredentials() instanceof KeycloakSecurityContext) {
@@ -0,0 +1,168 @@
+/*
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.inteligr8.activiti.keycloak;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.keycloak.representations.AccessToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.core.Authentication;
+import org.springframework.stereotype.Component;
+
+import com.inteligr8.activiti.TenantFinderService;
+import com.inteligr8.activiti.TenantRef;
+
+/**
+ * This class/bean determines the tenant of a login from a claim of its access
+ * token.  The claim may be the issuer, the realm of the issuer, the domain of
+ * the email address, or any custom claim.
+ * 
+ * The claim value is mapped to a tenant name by the configured mapping,
+ * regardless of case; or taken as the tenant name when there is no mapping.  The names are resolved
+ * to tenant IDs in an immutable lookup table, which is only rebuilt when the
+ * tenant meta-data is reloaded.  A lookup never blocks.
+ * 
+ * @author brian@inteligr8.com
+ */
+@Component
+public class ClaimTenantResolutionStrategy implements TenantResolutionStrategy, InitializingBean {
+	
+	public static final String CLAIM_ISSUER = "issuer";
+	public static final String CLAIM_REALM = "realm";
+	public static final String CLAIM_EMAIL_DOMAIN = "email-domain";
+	
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    
+    @Autowired
+    private TenantFinderService tenantFinderService;
+    
+    @Value("${keycloak-ext.tenant.claim:#{null}}")
+    private String claim;
+    
+    @Value("${keycloak-ext.tenant.claim.mapping:#{null}}")
+    private String claimMapping;
+    
+    private Map<String, String> claimToTenantName = Collections.emptyMap();
+    private volatile Lookup lookup;
+    
+    @Override
+    public void afterPropertiesSet() {
+    	if (this.claimMapping == null)
+    		return;
+    	
+    	Map<String, String> claimToTenantName = new HashMap<>();
+    	for (String mapping : StringUtils.split(this.claimMapping, ',')) {
+    		int equalsPos = mapping.indexOf('=');
+    		if (equalsPos < 0)
+    			throw new IllegalArgumentException("A tenant claim mapping must be formatted as 'value=tenantName': " + mapping);
+    		claimToTenantName.put(mapping.substring(0, equalsPos).trim().toLowerCase(), mapping.substring(equalsPos + 1).trim());
+    	}
+    	this.claimToTenantName = Collections.unmodifiableMap(claimToTenantName);
+    }
+    
+    @Override
+    public Long resolveTenantId(Authentication auth, AccessToken atoken) {
+    	if (this.claim == null)
+    		return null;
+    	
+    	String claimValue = this.getClaimValue(auth, atoken);
+    	if (claimValue == null) {
+    		this.logger.debug("The tenant claim '{}' is not available: {}", this.claim, auth.getName());
+    		return null;
+    	}
+    	
+    	// the mapping keys are lowercased when loaded
+    	if (!this.claimToTenantName.isEmpty())
+    		claimValue = claimValue.toLowerCase();
+    	
+    	Long tenantId = this.getLookup().tenantIds.get(claimValue);
+    	if (tenantId == null)
+    		this.logger.debug("The tenant claim '{}' value '{}' does not map to a tenant: {}", this.claim, claimValue, auth.getName());
+    	return tenantId;
+    }
+    
+    private String getClaimValue(Authentication auth, AccessToken atoken) {
+    	switch (this.claim) {
+    		case CLAIM_EMAIL_DOMAIN:
+    			String email = atoken == null || atoken.getEmail() == null ? auth.getName() : atoken.getEmail();
+    			int atPos = email == null ? -1 : email.lastIndexOf('@');
+    			return atPos < 0 ? null : email.substring(atPos + 1).toLowerCase();
+    		case CLAIM_ISSUER:
+    			return atoken == null ? null : atoken.getIssuer();
+    		case CLAIM_REALM:
+    			if (atoken == null || atoken.getIssuer() == null)
+    				return null;
+    			int realmPos = atoken.getIssuer().lastIndexOf("/realms/");
+    			return realmPos < 0 ? null : atoken.getIssuer().substring(realmPos + "/realms/".length());
+    		default:
+    			if (atoken == null || atoken.getOtherClaims() == null)
+    				return null;
+    			Object value = atoken.getOtherClaims().get(this.claim);
+    			return value == null ? null : value.toString();
+    	}
+    }
+    
+    private Lookup getLookup() {
+    	Collection<TenantRef> tenants = this.tenantFinderService.getTenantRefs();
+    	Lookup lookup = this.lookup;
+    	if (lookup != null && lookup.tenants == tenants)
+    		return lookup;
+    	
+    	// the tenants were reloaded; concurrent rebuilds produce the same table
+    	Map<String, Long> tenantIdsByName = new HashMap<>(tenants.size() * 2);
+    	for (TenantRef tenant : tenants)
+    		tenantIdsByName.put(tenant.getName(), tenant.getId());
+    	
+    	Map<String, Long> tenantIds = new HashMap<>();
+    	if (this.claimToTenantName.isEmpty()) {
+    		tenantIds.putAll(tenantIdsByName);
+    	} else {
+    		for (Map.Entry<String, String> mapping : this.claimToTenantName.entrySet()) {
+    			Long tenantId = tenantIdsByName.get(mapping.getValue());
+    			if (tenantId == null) {
+    				this.logger.warn("The tenant claim mapping refers to a tenant that does not exist: {}", mapping.getValue());
+    			} else {
+    				tenantIds.put(mapping.getKey(), tenantId);
+    			}
+    		}
+    	}
+    	
+    	this.lookup = lookup = new Lookup(tenants, Collections.unmodifiableMap(tenantIds));
+    	return lookup;
+    }
+    
+    
+    
+    private static class Lookup {
+    	
+    	private final Collection<TenantRef> tenants;
+    	private final Map<String, Long> tenantIds;
+    	
+    	Lookup(Collection<TenantRef> tenants, Map<String, Long> tenantIds) {
+    		this.tenants = tenants;
+    		this.tenantIds = tenantIds;
+    	}
+    	
+    }
+
+}
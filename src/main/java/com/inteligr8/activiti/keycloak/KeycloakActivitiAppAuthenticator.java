@@ -14,25 +14,40 @@
  */
 package com.inteligr8.activiti.keycloak;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.annotation.OverridingMethodsMustInvokeSuper;
-import javax.persistence.NonUniqueResultException;
 
 import org.apache.commons.lang3.StringUtils;
+import org.keycloak.KeycloakSecurityContext;
 import org.keycloak.representations.AccessToken;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Lazy;
+import org.springframework.core.env.Environment;
+import org.springframework.data.util.Pair;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.AuthenticationException;
 import org.springframework.stereotype.Component;
@@ -41,7 +56,19 @@ import com.activiti.domain.idm.Group;
 import com.activiti.domain.idm.User;
 import com.activiti.service.api.GroupService;
 import com.activiti.service.api.UserService;
+import com.inteligr8.activiti.ExpiringLruCache;
+import com.inteligr8.activiti.GroupDirectory;
+import com.inteligr8.activiti.GroupFinderService;
+import com.inteligr8.activiti.GroupRef;
+import com.inteligr8.activiti.TenantCacheListener;
 import com.inteligr8.activiti.TenantFinderService;
+import com.inteligr8.activiti.TransactionCallbacks;
+import com.inteligr8.activiti.TransactionExecutor;
+import com.inteligr8.activiti.UserFinderService;
+import com.inteligr8.activiti.UserRef;
+import com.inteligr8.activiti.auth.AdmissionLimiter;
+import com.inteligr8.activiti.auth.AuthenticationContext;
+import com.inteligr8.activiti.metrics.MetricsService;
 
 /**
  * This class/bean implements an Open ID Connect authenticator for Alfresco
@@ -52,13 +79,36 @@ import com.inteligr8.activiti.TenantFinderService;
  * This implements an internal Authenticator so other authenticators could be
  * created in the future.
  * 
- * FIXME This implementation is not good for multi-tenancy.
+ * The tenant of each login is determined by the `TenantResolutionStrategy`
+ * beans; or is the configured tenant.  Each tenant has its own sync cache and
+ * may have its own role rules, using properties starting with the
+ * `keycloak-ext.tenants.{tenantId}.` prefix.
+ * 
+ * The identity and group memberships of each user are cached per tenant, so
+ * repeated logins do not query for the same user.  The cached memberships
+ * are dropped whenever this class changes them, and when another node of the
+ * cluster changes the user.  For that, any change to a user's memberships
+ * also updates the `lastUpdate` of the user; one extra row update.
+ * 
+ * Group synchronizations require a transaction manager, as memberships are
+ * changed through entity references that are only valid in a transaction.
+ * 
+ * The number of group synchronizations writing to the database at a time may
+ * be limited, so a mass login cannot exhaust the connection pool the workflow
+ * engine shares.  A synchronization that does not get a permit in time is
+ * skipped, leaving the user to be synchronized on their next login; or
+ * queued.
  * 
  * @author brian.long@yudrio.com
  */
 @Component("keycloak-ext.activiti-app.authenticator")
 @Lazy
-public class KeycloakActivitiAppAuthenticator extends AbstractKeycloakActivitiAuthenticator {
+public class KeycloakActivitiAppAuthenticator extends AbstractKeycloakActivitiAuthenticator implements TenantCacheListener, DisposableBean {
+	
+	private static final Long NO_TENANT = Long.MIN_VALUE;
+	
+	/** The `AuthenticationContext` attribute holding the `UserRef` of the APS user */
+	private static final String CONTEXT_USER = "aps.user";
 	
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
     
@@ -73,42 +123,184 @@ public class KeycloakActivitiAppAuthenticator extends AbstractKeycloakActivitiAu
     @Autowired
     private TenantFinderService tenantFinderService;
     
+    @Autowired
+    private UserFinderService userFinderService;
+    
+    @Autowired
+    private GroupFinderService groupFinderService;
+    
+    @Autowired
+    private GroupDirectory groupDirectory;
+    
+    @Autowired
+    private TransactionExecutor transactionExecutor;
+    
+    @Autowired
+    private MetricsService metrics;
+    
+    @Autowired(required = false)
+    private List<TenantResolutionStrategy> tenantResolutionStrategies;
+    
+    @Autowired
+    private Environment environment;
+    
     @Value("${keycloak-ext.external.id:ais}")
     protected String externalIdmSource;
 
     @Value("${keycloak-ext.group.capability.regex.patterns:#{null}}")
     protected String regexCapIncludes;
 
+    @Value("${keycloak-ext.syncCache.enabled:true}")
+    protected boolean syncCacheEnabled;
+
+    @Value("${keycloak-ext.syncCache.maxSize:10000}")
+    protected int syncCacheMaxSize;
+
+    @Value("${keycloak-ext.syncCache.maxAgeSeconds:3600}")
+    protected long syncCacheMaxAgeSeconds;
+
+    @Value("${keycloak-ext.userCache.maxSize:10000}")
+    protected int userCacheMaxSize;
+
+    @Value("${keycloak-ext.userCache.absent.ttlSeconds:60}")
+    protected long userCacheAbsentTtlSeconds;
+
+    @Value("${keycloak-ext.userCache.foreign.ttlSeconds:600}")
+    protected long userCacheForeignTtlSeconds;
+
+    @Value("${keycloak-ext.userCache.identity.ttlSeconds:300}")
+    protected long userCacheIdentityTtlSeconds;
+
+    @Value("${keycloak-ext.sync.permits:0}")
+    protected int syncPermits;
+
+    @Value("${keycloak-ext.sync.permitWaitMillis:500}")
+    protected long syncPermitWaitMillis;
+
+    @Value("${keycloak-ext.sync.overflowPolicy:skip}")
+    protected String syncOverflowPolicy;
+
+    @Value("${keycloak-ext.sync.queueDepth:1000}")
+    protected int syncQueueDepth;
+
     protected final Set<Pattern> capIncludes = new HashSet<>();
     
+    private final ConcurrentMap<Long, TenantState> tenantStates = new ConcurrentHashMap<>();
+    
+    private MembershipPlanner membershipPlanner;
+    
+    private AdmissionLimiter syncAdmission;
+    
     @Override
     @OverridingMethodsMustInvokeSuper
 	public void afterPropertiesSet() {
-		super.afterPropertiesSet();
-		
+		// the capability patterns must be compiled before the role mapping engine is built
     	if (this.regexCapIncludes != null) {
     		String[] regexPatternStrs = StringUtils.split(this.regexCapIncludes, ',');
     		for (int i = 0; i < regexPatternStrs.length; i++)
     			this.capIncludes.add(Pattern.compile(regexPatternStrs[i]));
     	}
+    	
+		super.afterPropertiesSet();
+		
+		this.membershipPlanner = new MembershipPlanner(this.externalIdmSource, this.syncInternalGroups);
+		
+		AdmissionLimiter.OverflowPolicy overflowPolicy = AdmissionLimiter.OverflowPolicy.valueOf(this.syncOverflowPolicy.trim().toUpperCase());
+		if (this.syncPermits > 0)
+			this.logger.info("Limiting group synchronizations to {} at a time; waiting up to {} ms before they are {}",
+					this.syncPermits, this.syncPermitWaitMillis, overflowPolicy == AdmissionLimiter.OverflowPolicy.QUEUE ? "queued" : "skipped");
+		this.syncAdmission = new AdmissionLimiter("sync", this.syncPermits, this.syncPermitWaitMillis, overflowPolicy, this.syncQueueDepth);
 	}
     
+    @Override
+    public void destroy() {
+    	this.syncAdmission.destroy();
+    }
+    
+    @Override
+    protected Collection<Pattern> getCapabilityIncludes() {
+    	return this.capIncludes;
+    }
+    
     /**
      * This method validates that the user exists, if not, it creates the
      * missing user.  Without this functionality, SSO straight up fails in APS.
      */
     @Override
     public void preAuthenticate(Authentication auth) throws AuthenticationException { 
-    	Long tenantId = this.tenantFinderService.findTenantId();
+    	this.preAuthenticate(new AuthenticationContext(auth));
+    }
+    
+    /**
+     * @see #preAuthenticate(Authentication)
+     */
+    @Override
+    public void preAuthenticate(AuthenticationContext context) throws AuthenticationException {
+    	Authentication auth = context.getAuthentication();
+    	KeycloakSecurityContext ksc = this.getKeycloakSecurityContext(context);
+		AccessToken atoken = ksc == null ? null : ksc.getToken();
+    	Long tenantId = this.resolveTenantId(context, atoken);
 		this.logger.trace("Tenant ID: {}", tenantId);
 		
-    	User user = this.findUser(auth, tenantId);
-    	if (user == null) {
+		if (this.isKnownToBeSkipped(auth.getName(), tenantId)) {
+			this.metrics.increment(MetricsService.USER_LOOKUPS_SKIPPED);
+			return;
+		}
+		
+		ExpiringLruCache<String, UserRef> identities = this.getTenantState(tenantId).identities;
+		UserRef identity = identities == null ? null : identities.get(auth.getName());
+		if (identity != null && identity.getExternalOriginalSrc() != null && identity.getExternalOriginalSrc().length() > 0) {
+			this.logger.trace("User recently found to exist and be linked: {}", auth.getName());
+			this.metrics.increment(MetricsService.USER_LOOKUPS_SKIPPED);
+			context.setAttribute(CONTEXT_USER, identity);
+			return;
+		}
+		
+		if (atoken == null)
+    		this.logger.debug("The keycloak access token could not be found; using email to determine names: {}", auth.getName());
+		
+		User user = this.provisionUser(auth.getName(), tenantId,
+				atoken == null ? null : atoken.getGivenName(),
+				atoken == null ? null : atoken.getFamilyName());
+		if (user != null)
+			context.setAttribute(CONTEXT_USER, UserRef.of(user));
+    }
+    
+    /**
+     * This method provisions a user and their group memberships without them
+     * logging in, like from a bulk reconciliation.  The same rules apply as
+     * if they logged in with the specified roles.
+     * 
+     * @param email The email address of the user
+     * @param givenName The first name of the user, for when they are created; may be null
+     * @param familyName The last name of the user, for when they are created; may be null
+     * @param roles The user's mapped roles; see `mapRoles()`
+     * @param tenantId A tenant ID; may be null
+     * @return true if the user exists or was created and their groups were synchronized, or queued to be; false otherwise
+     */
+    public boolean reconcileUser(String email, String givenName, String familyName, Map<String, String> roles, Long tenantId) {
+    	User user = this.provisionUser(email, tenantId, givenName, familyName);
+    	if (user == null)
+    		return false;
+    	
+    	return this.syncUserRoles(UserRef.of(user), email, roles, tenantId);
+    }
+    
+    private User provisionUser(String email, Long tenantId, String givenName, String familyName) {
+    	User user = this.findUser(email, tenantId);
+    	if (user == null && this.existsInOtherTenant(email, tenantId)) {
+    		ExpiringLruCache<String, Boolean> foreignUsers = this.getTenantState(tenantId).foreignUsers;
+    		if (foreignUsers != null)
+    			foreignUsers.put(email, Boolean.TRUE);
+    		return null;
+    	} else if (user == null) {
     		if (this.createMissingUser) {
-	    		this.logger.debug("User does not yet exist; creating the user: {}", auth.getName());
+	    		this.logger.debug("User does not yet exist; creating the user: {}", email);
 	    		
-	    		user = this.createUser(auth, tenantId);
+	    		user = this.createUser(email, givenName, familyName, tenantId);
 	    		this.logger.debug("Created user: {} => {}", user.getId(), user.getExternalId());
+	    		this.metrics.increment(MetricsService.USERS_CREATED);
+	    		this.forgetSkippedUser(email);
 	    		
 	    		if (this.clearNewUserDefaultGroups) {
 		    		this.logger.debug("Clearing groups: {}", user.getId());
@@ -118,19 +310,36 @@ public class KeycloakActivitiAppAuthenticator extends AbstractKeycloakActivitiAu
 	    				this.groupService.deleteUserFromGroup(group, user);
 	    		}
     		} else {
-    			this.logger.info("User does not exist; user creation is disabled: {}", auth.getName());
+    			this.logger.info("User does not exist; user creation is disabled: {}", email);
+    			ExpiringLruCache<String, Boolean> absentUsers = this.getTenantState(tenantId).absentUsers;
+    			if (absentUsers != null)
+    				absentUsers.put(email, Boolean.TRUE);
     		}
     	} else if (user.getExternalOriginalSrc() == null || user.getExternalOriginalSrc().length() == 0) {
-    		this.logger.debug("User exists, but not created by an external source: {}", auth.getName());
-    		this.logger.info("Linking user '{}' with external IDM '{}'", auth.getName(), this.externalIdmSource);
-    		user.setExternalId(auth.getName());
+    		this.logger.debug("User exists, but not created by an external source: {}", email);
+    		this.logger.info("Linking user '{}' with external IDM '{}'", email, this.externalIdmSource);
+    		user.setExternalId(email);
     		user.setExternalOriginalSrc(this.externalIdmSource);
     		this.userService.save(user);
+    		this.metrics.increment(MetricsService.USERS_LINKED);
+    		this.forgetSkippedUser(email);
     	} else if (!this.externalIdmSource.equals(user.getExternalOriginalSrc())) {
-    		this.logger.debug("User '{}' exists, but created by another source: {}", auth.getName(), user.getExternalOriginalSrc());
+    		this.logger.debug("User '{}' exists, but created by another source: {}", email, user.getExternalOriginalSrc());
+    		ExpiringLruCache<String, Boolean> foreignUsers = this.getTenantState(tenantId).foreignUsers;
+    		if (foreignUsers != null)
+    			foreignUsers.put(email, Boolean.TRUE);
     	} else {
-    		this.logger.trace("User already exists: {}", auth.getName());
+    		this.logger.trace("User already exists: {}", email);
     	}
+    	
+    	ExpiringLruCache<String, UserRef> identities = this.getTenantState(tenantId).identities;
+    	if (user != null && identities != null) {
+    		// a created or linked user may be part of a larger transaction, like a reconciliation batch
+    		UserRef identity = UserRef.of(user);
+    		TransactionCallbacks.afterCommit(() -> identities.put(email, identity));
+    	}
+    	
+    	return user;
     }
     
     /**
@@ -140,164 +349,529 @@ public class KeycloakActivitiAppAuthenticator extends AbstractKeycloakActivitiAu
      */
     @Override
     public void postAuthenticate(Authentication auth) throws AuthenticationException {
-    	Long tenantId = this.tenantFinderService.findTenantId();
-    	User user = this.findUser(auth, tenantId);
+    	this.postAuthenticate(new AuthenticationContext(auth));
+    }
+    
+    /**
+     * @see #postAuthenticate(Authentication)
+     */
+    @Override
+    public void postAuthenticate(AuthenticationContext context) throws AuthenticationException {
+    	Authentication auth = context.getAuthentication();
+    	KeycloakSecurityContext ksc = this.getKeycloakSecurityContext(context);
+    	Long tenantId = this.resolveTenantId(context, ksc == null ? null : ksc.getToken());
+    	
+    	UserRef user = context.getAttribute(CONTEXT_USER, UserRef.class);
+    	if (user == null) {
+    		user = this.findUserRef(auth.getName(), tenantId);
+	    	if (user == null) {
+	    		this.logger.debug("The user does not exist; skipping sync: {}", auth.getName());
+	    		return;
+	    	}
+	    	context.setAttribute(CONTEXT_USER, user);
+    	}
 		this.logger.debug("Inspecting user: {} => {}", user.getId(), user.getExternalId());
 		
-    	this.syncUserRoles(user, auth, tenantId);
+    	Map<String, String> roles = context.getRoles();
+    	if (roles == null) {
+    		roles = this.getKeycloakRoles(ksc, this.getTenantState(tenantId).engine);
+    		context.setRoles(roles);
+    	}
+    	if (roles == null) {
+    		this.logger.debug("The user roles could not be determined; skipping sync: {}", user.getEmail());
+    		return;
+    	}
+    	
+    	this.syncUserRoles(user, auth.getName(), roles, tenantId);
     }
     
-    private User findUser(Authentication auth, Long tenantId) {
-    	String email = auth.getName();
-		
-    	User user = this.userService.findUserByEmailAndTenantId(email, tenantId);
-    	if (user == null) {
-    		this.logger.debug("User does not exist in tenant; trying tenant-less lookup: {}", email);
-    		user = this.userService.findUserByEmail(email);
+    /**
+     * This method applies the role rules of the specified tenant.
+     * 
+     * @see #mapRoles(Collection, Map)
+     */
+    public Map<String, String> mapRolesForTenant(Collection<String> realmRoles, Map<String, ? extends Collection<String>> resourceRoles, Long tenantId) {
+    	return this.mapRoles(realmRoles, resourceRoles, this.getTenantState(tenantId).engine);
+    }
+    
+    private Long resolveTenantId(AuthenticationContext context, AccessToken atoken) {
+    	if (!context.isTenantResolved())
+    		context.setTenantId(this.resolveTenantId(context.getAuthentication(), atoken));
+    	return context.getTenantId();
+    }
+    
+    private Long resolveTenantId(Authentication auth, AccessToken atoken) {
+    	if (this.tenantResolutionStrategies != null) {
+    		for (TenantResolutionStrategy strategy : this.tenantResolutionStrategies) {
+    			Long tenantId = strategy.resolveTenantId(auth, atoken);
+    			if (tenantId != null)
+    				return tenantId;
+    		}
+    	}
+    	
+    	return this.tenantFinderService.findTenantId();
+    }
+    
+    private TenantState getTenantState(Long tenantId) {
+    	return this.tenantStates.computeIfAbsent(tenantId == null ? NO_TENANT : tenantId, key -> this.newTenantState(tenantId));
+    }
+    
+    private TenantState newTenantState(Long tenantId) {
+    	String prefix = "keycloak-ext.tenants." + tenantId + ".group.";
+    	String regexIncludes = this.environment.getProperty(prefix + "include.regex.patterns");
+    	String regexExcludes = this.environment.getProperty(prefix + "exclude.regex.patterns");
+    	String regexPatterns = this.environment.getProperty(prefix + "format.regex.patterns");
+    	String regexReplacements = this.environment.getProperty(prefix + "format.regex.replacements");
+    	String regexCapIncludes = this.environment.getProperty(prefix + "capability.regex.patterns");
+    	
+    	// tenants without their own rules share the default rules
+    	RoleMappingEngine engine = this.roleMappingEngine;
+    	if (regexIncludes != null || regexExcludes != null || regexPatterns != null || regexCapIncludes != null) {
+    		this.logger.info("Using tenant-specific group rules for tenant: {}", tenantId);
+    		Set<Pattern> includes = new HashSet<>();
+    		this.compilePatterns(regexIncludes == null ? this.regexIncludes : regexIncludes, includes);
+    		Set<Pattern> excludes = new HashSet<>();
+    		this.compilePatterns(regexExcludes == null ? this.regexExcludes : regexExcludes, excludes);
+    		List<Pair<Pattern, String>> formatters = new LinkedList<>();
+    		if (regexPatterns == null) {
+    			formatters.addAll(this.groupFormatters);
+    		} else {
+    			this.compileFormatters(regexPatterns, regexReplacements, formatters);
+    		}
+    		Set<Pattern> capIncludes = new HashSet<>();
+    		this.compilePatterns(regexCapIncludes == null ? this.regexCapIncludes : regexCapIncludes, capIncludes);
+    		engine = new RoleMappingEngine(includes, excludes, formatters, capIncludes, this.roleMappingCacheMaxSize);
+    	}
+    	
+    	ExpiringLruCache<String, String> syncFingerprints = this.syncCacheEnabled ?
+    			new ExpiringLruCache<>(this.syncCacheMaxSize, this.syncCacheMaxAgeSeconds * 1000L) : null;
+    	ExpiringLruCache<String, Boolean> absentUsers = this.userCacheAbsentTtlSeconds > 0L ?
+    			new ExpiringLruCache<>(this.userCacheMaxSize, this.userCacheAbsentTtlSeconds * 1000L) : null;
+    	ExpiringLruCache<String, Boolean> foreignUsers = this.userCacheForeignTtlSeconds > 0L ?
+    			new ExpiringLruCache<>(this.userCacheMaxSize, this.userCacheForeignTtlSeconds * 1000L) : null;
+    	ExpiringLruCache<String, UserRef> identities = this.userCacheIdentityTtlSeconds > 0L ?
+    			new ExpiringLruCache<>(this.userCacheMaxSize, this.userCacheIdentityTtlSeconds * 1000L) : null;
+    	return new TenantState(engine, syncFingerprints, absentUsers, foreignUsers, identities);
+    }
+    
+    /**
+     * @return true if the user was recently found to not exist (with creation disabled) or to be owned by another source or tenant
+     */
+    private boolean isKnownToBeSkipped(String email, Long tenantId) {
+    	TenantState state = this.getTenantState(tenantId);
+    	if (state.absentUsers != null && state.absentUsers.get(email) != null) {
+    		this.logger.trace("User recently found to not exist; skipping: {}", email);
+    		return true;
+    	} else if (state.foreignUsers != null && state.foreignUsers.get(email) != null) {
+    		this.logger.trace("User recently found to be owned by another source or tenant; skipping: {}", email);
+    		return true;
     	} else {
+    		return false;
+    	}
+    }
+    
+    /**
+     * Users are forgotten by every tenant, as a user of one tenant is foreign
+     * to the others.
+     */
+    @Override
+    public void onUsersChanged(Long tenantId, Collection<String> emails) {
+    	if (emails == null) {
+    		this.logger.debug("Forgetting all cached users due to a change in tenant: {}", tenantId);
+    		for (TenantState state : this.tenantStates.values())
+    			state.clearUsers();
+    	} else {
+    		for (String email : emails)
+    			this.forgetUser(email);
+    	}
+    }
+    
+    /**
+     * This method is called when a user is created or linked, which makes
+     * them foreign to every other tenant.
+     */
+    private void forgetUser(String email) {
+    	for (TenantState state : this.tenantStates.values())
+    		state.forgetUser(email);
+    }
+    
+    private void forgetSkippedUser(String email) {
+    	for (TenantState state : this.tenantStates.values()) {
+    		if (state.absentUsers != null)
+    			state.absentUsers.remove(email);
+    		if (state.foreignUsers != null)
+    			state.foreignUsers.remove(email);
+    	}
+    }
+    
+    private UserRef findUserRef(String email, Long tenantId) {
+    	ExpiringLruCache<String, UserRef> identities = this.getTenantState(tenantId).identities;
+    	UserRef identity = identities == null ? null : identities.get(email);
+    	if (identity != null) {
+    		this.logger.trace("Found cached user: {}", identity.getId());
+    		return identity;
+    	}
+    	
+    	User user = this.findUser(email, tenantId);
+    	if (user == null)
+    		return null;
+    	
+    	identity = UserRef.of(user);
+    	if (identities != null)
+    		identities.put(email, identity);
+    	return identity;
+    }
+    
+    /**
+     * When a tenant was resolved, only the users of that tenant are found;
+     * see `existsInOtherTenant()`.
+     * 
+     * @return The user; null if they do not exist
+     */
+    private User findUser(String email, Long tenantId) {
+    	User user = this.userService.findUserByEmailAndTenantId(email, tenantId);
+    	if (user != null) {
     		this.logger.trace("Found user: {}", user.getId());
+    	} else if (tenantId == null) {
+    		this.logger.debug("User does not exist without a tenant; trying tenant-less lookup: {}", email);
+    		user = this.userService.findUserByEmail(email);
     	}
     	
     	return user;
     }
     
-    private User createUser(Authentication auth, Long tenantId) {
-		AccessToken atoken = this.getKeycloakAccessToken(auth);
-		if (atoken == null) {
-    		this.logger.debug("The keycloak access token could not be found; using email to determine names: {}", auth.getName());
-    		Matcher emailNamesMatcher = this.emailNamesPattern.matcher(auth.getName());
+    /**
+     * A user of another tenant must neither be served to this tenant nor be
+     * created again in it, as the email address is already taken.
+     * 
+     * @return true if the user does not exist in the resolved tenant, but exists in another one; false otherwise
+     */
+    private boolean existsInOtherTenant(String email, Long tenantId) {
+    	if (tenantId == null)
+    		return false;
+    	
+    	User user = this.userService.findUserByEmail(email);
+    	if (user == null || tenantId.equals(user.getTenantId()))
+    		return false;
+    	
+    	this.logger.info("User '{}' exists, but in another tenant: {}", email, user.getTenantId());
+    	return true;
+    }
+    
+    private User createUser(String email, String givenName, String familyName, Long tenantId) {
+		if (givenName == null && familyName == null) {
+    		Matcher emailNamesMatcher = this.emailNamesPattern.matcher(email);
     		if (!emailNamesMatcher.matches()) {
-        		this.logger.warn("The email address could not be parsed for names: {}", auth.getName());
-    			return this.userService.createNewUserFromExternalStore(auth.getName(), "Unknown", "Person", tenantId, auth.getName(), this.externalIdmSource, new Date());
+        		this.logger.warn("The email address could not be parsed for names: {}", email);
+    			return this.userService.createNewUserFromExternalStore(email, "Unknown", "Person", tenantId, email, this.externalIdmSource, new Date());
     		} else {
     			String firstName = StringUtils.capitalize(emailNamesMatcher.group(1));
     			String lastName = StringUtils.capitalize(emailNamesMatcher.group(2));
-    			return this.userService.createNewUserFromExternalStore(auth.getName(), firstName, lastName, tenantId, auth.getName(), this.externalIdmSource, new Date());
+    			return this.userService.createNewUserFromExternalStore(email, firstName, lastName, tenantId, email, this.externalIdmSource, new Date());
     		}
 		} else {
-			return this.userService.createNewUserFromExternalStore(auth.getName(), atoken.getGivenName(), atoken.getFamilyName(), tenantId, auth.getName(), this.externalIdmSource, new Date());
+			return this.userService.createNewUserFromExternalStore(email, givenName, familyName, tenantId, email, this.externalIdmSource, new Date());
 		}
     }
 
-    private void syncUserRoles(User user, Authentication auth, Long tenantId) {
-    	Map<String, String> roles = this.getKeycloakRoles(auth);
-    	if (roles == null) {
-    		this.logger.debug("The user roles could not be determined; skipping sync: {}", user.getEmail());
-    		return;
+    /**
+     * @return true if the groups are in sync, were synchronized or were queued to be; false if the sync was skipped for lack of a permit
+     */
+    private boolean syncUserRoles(UserRef user, String name, Map<String, String> roles, Long tenantId) {
+    	ExpiringLruCache<String, String> syncFingerprints = this.getTenantState(tenantId).syncFingerprints;
+    	String fingerprint = syncFingerprints == null ? null : this.fingerprint(user.getId(), roles);
+    	if (fingerprint != null && fingerprint.equals(syncFingerprints.get(name))) {
+    		this.logger.debug("The user roles have not changed since the last sync; skipping sync: {}", user.getEmail());
+    		this.metrics.increment(MetricsService.SYNCS_SKIPPED);
+    		return true;
     	}
     	
-		// check Activiti groups
-		User userWithGroups = this.userService.getUser(user.getId(), true);
-		for (Group group : userWithGroups.getGroups()) {
-			if (group.getExternalId() == null && !this.syncInternalGroups)
-				continue;
+    	Runnable sync = () -> this.transactionExecutor.execute(() -> {
+			this.syncUserGroups(user, name, roles, tenantId);
 			
-			this.logger.trace("Inspecting group: {} => {} ({})", group.getId(), group.getName(), group.getExternalId());
+			// the sync may be part of a larger transaction, like a reconciliation batch
+			if (fingerprint != null)
+				TransactionCallbacks.afterCommit(() -> syncFingerprints.put(name, fingerprint));
+		});
+    	
+    	AdmissionLimiter.Outcome outcome = this.syncAdmission.execute(name, () -> {
+    		try {
+    			sync.run();
+    		} catch (RuntimeException re) {
+    			if (!this.groupDirectory.isEnabled())
+    				throw re;
+    			
+    			// a group deleted since it was cached fails the whole sync; try once more with the groups reloaded
+    			this.logger.info("The group sync failed; reloading the groups of tenant {} and trying again: {}", tenantId, user.getEmail(), re);
+    			this.groupDirectory.invalidate(tenantId);
+    			sync.run();
+    		}
+    	});
+    	
+    	if (outcome == AdmissionLimiter.Outcome.QUEUED) {
+    		this.metrics.increment(MetricsService.SYNCS_QUEUED);
+    	} else if (outcome == AdmissionLimiter.Outcome.SKIPPED) {
+    		this.logger.info("Too many concurrent group synchronizations; deferring sync to the next login: {}", user.getEmail());
+    		this.metrics.increment(MetricsService.SYNCS_THROTTLED);
+    		// the user is dirty; make sure no earlier fingerprint lets the next login skip the sync
+    		if (syncFingerprints != null)
+    			syncFingerprints.remove(name);
+    		return false;
+    	}
+    	
+    	return true;
+    }
+    
+    /**
+     * This method reconciles the user's group memberships with the specified
+     * roles.
+     */
+    private void syncUserGroups(UserRef user, String userName, Map<String, String> mappedRoles, Long tenantId) {
+		ExpiringLruCache<String, UserRef> identities = this.getTenantState(tenantId).identities;
+		
+		// check Activiti groups; the cached memberships are only trusted for adding the user to groups
+		User userWithGroups = null;
+		Map<Long, Group> groupsById = new HashMap<>();
+		List<GroupRef> groupRefs = user.getGroups();
+		MembershipPlanner.Plan plan = groupRefs == null ? null : this.membershipPlanner.plan(groupRefs, mappedRoles, tenantId);
+		if (plan == null || !plan.getFixTenant().isEmpty() || !plan.getRelink().isEmpty() || !plan.getRemove().isEmpty() && this.syncGroupRemove) {
+			userWithGroups = this.userService.getUser(user.getId(), true);
+			groupRefs = new ArrayList<>();
+			for (Group group : userWithGroups.getGroups()) {
+				groupsById.put(group.getId(), group);
+				groupRefs.add(GroupRef.of(group));
+			}
 			
-			if (group.getExternalId() != null && this.removeMapEntriesByValue(roles, this.apsGroupExternalIdToKeycloakRole(group.getExternalId()))) {
-				if (group.getTenantId() == null) {
-					// fix stray groups
-					group.setTenantId(tenantId);
-					group.setLastUpdate(new Date());
-					this.groupService.save(group);
-				}
-				// role already existed and the user is already a member
-			} else if (group.getExternalId() == null && roles.remove(this.apsGroupNameToKeycloakRole(group.getName())) != null) {
-				// register the group as external
-				group.setExternalId(this.keycloakRoleToApsGroupExternalId(this.apsGroupNameToKeycloakRole(group.getName())));
-				group.setLastUpdate(new Date());
-				this.groupService.save(group);
-				// internal role already existed and the user is already a member
+			plan = this.membershipPlanner.plan(groupRefs, mappedRoles, tenantId);
+		}
+		this.logger.debug("Planned group membership sync: {} => {}", user.getExternalId(), plan);
+		
+		boolean changing = !plan.getFixTenant().isEmpty() || !plan.getRelink().isEmpty() ||
+				!plan.getRemove().isEmpty() && this.syncGroupRemove || !plan.getAdd().isEmpty();
+		if (identities != null) {
+			if (changing) {
+				// drop the cached memberships before they change; that is safe even if rolled back
+				identities.put(userName, user.withGroups(null));
 			} else {
-				// at this point, we have a group that the user does not have a corresponding role for
-				if (this.syncGroupRemove) {
-					this.logger.trace("Removing user '{}' from group '{}'", user.getExternalId(), group.getName());
-					this.groupService.deleteUserFromGroup(group, userWithGroups);
-				} else {
-					this.logger.debug("User/group membership sync disabled; not removing user from group: {} => {}", user.getExternalId(), group.getName());
-				}
+				// only cache the memberships once they are known to be committed
+				List<GroupRef> committedGroupRefs = groupRefs;
+				TransactionCallbacks.afterCommit(() -> identities.put(userName, user.withGroups(committedGroupRefs)));
+			}
+		}
+		
+		// membership changes only need the ID, so avoid loading the user
+		User member = userWithGroups != null ? userWithGroups : this.userFinderService.getUserReference(user.getId());
+		if (changing) {
+			// lets the other nodes of a cluster know to forget their cached memberships; an extra update of the user row
+			member.setLastUpdate(new Date());
+		}
+		
+		for (GroupRef groupRef : plan.getFixTenant()) {
+			// fix stray groups
+			Group group = groupsById.get(groupRef.getId());
+			group.setTenantId(tenantId);
+			group.setLastUpdate(new Date());
+			this.groupDirectory.register(this.groupService.save(group));
+			this.metrics.increment(MetricsService.GROUPS_TENANT_FIXED);
+			// role already existed and the user is already a member
+		}
+		
+		for (MembershipPlanner.Relink relink : plan.getRelink()) {
+			// register the group as external
+			Group group = groupsById.get(relink.getGroup().getId());
+			group.setExternalId(relink.getExternalId());
+			group.setLastUpdate(new Date());
+			this.groupDirectory.register(this.groupService.save(group));
+			// internal role already existed and the user is already a member
+		}
+		
+		for (GroupRef groupRef : plan.getRemove()) {
+			// at this point, we have a group that the user does not have a corresponding role for
+			if (this.syncGroupRemove) {
+				this.logger.trace("Removing user '{}' from group '{}'", user.getExternalId(), groupRef.getName());
+				this.groupService.deleteUserFromGroup(groupsById.get(groupRef.getId()), userWithGroups);
+				this.metrics.increment(MetricsService.MEMBERSHIPS_REMOVED);
+			} else {
+				this.logger.debug("User/group membership sync disabled; not removing user from group: {} => {}", user.getExternalId(), groupRef.getName());
 			}
 		}
 		
+		Map<String, String> roles = plan.getAdd();
+		if (roles.isEmpty())
+			return;
+		
+		// resolve the groups of all remaining authorities at once
+		Set<String> externalIds = new HashSet<>(roles.size());
+		for (String role : roles.keySet())
+			externalIds.add(this.keycloakRoleToApsGroupExternalId(role));
+		Map<String, List<GroupRef>> groupsByExternalId = this.groupDirectory.findGroupsByExternalIds(externalIds, tenantId);
+		
+		Map<String, List<GroupRef>> groupsByName = Collections.emptyMap();
+		if (this.syncInternalGroups) {
+			Set<String> names = new HashSet<>();
+			for (Entry<String, String> role : roles.entrySet()) {
+				if (!groupsByExternalId.containsKey(this.keycloakRoleToApsGroupExternalId(role.getKey())))
+					names.add(this.keycloakRoleToApsGroupName(role.getValue()));
+			}
+			groupsByName = this.groupDirectory.findGroupsByNames(names, tenantId);
+		}
+		
 		// add remaining authorities into Activiti
 		for (Entry<String, String> role : roles.entrySet()) {
 			this.logger.trace("Syncing group membership: {}", role);
 			
-			Group group;
-			try {
-				group = this.groupService.getGroupByExternalIdAndTenantId(this.keycloakRoleToApsGroupExternalId(role.getKey()), tenantId);
-			} catch (NonUniqueResultException nure) {
+			Group group = null;
+			List<GroupRef> externalGroups = groupsByExternalId.get(this.keycloakRoleToApsGroupExternalId(role.getKey()));
+			if (externalGroups != null && externalGroups.size() > 1) {
 				this.logger.warn("There are multiple groups with the external ID; not adding user to group: {}", role.getKey());
 				continue;
+			} else if (externalGroups != null) {
+				// membership changes only need the ID, so avoid loading the group
+				group = this.groupFinderService.getGroupReference(externalGroups.iterator().next().getId());
 			}
 
 			if (group == null && this.syncInternalGroups) {
-				List<Group> groups = this.groupService.getGroupByNameAndTenantId(this.keycloakRoleToApsGroupName(role.getValue()), tenantId);
+				List<GroupRef> groups = groupsByName.getOrDefault(this.keycloakRoleToApsGroupName(role.getValue()), Collections.emptyList());
 				if (groups.size() > 1) {
 					this.logger.warn("There are multiple groups with the same name; not adding user to group: {}", role.getValue());
 					continue;
 				} else if (groups.size() == 1) {
-					group = groups.iterator().next();
+					group = this.groupService.getGroup(groups.iterator().next().getId());
 					this.logger.debug("Found an internal group; registering as external: {}", group.getName());
 					group.setExternalId(this.keycloakRoleToApsGroupExternalId(role.getKey()));
 					group.setLastSyncTimeStamp(new Date());
 					group.setLastUpdate(new Date());
-					this.groupService.save(group);
+					group = this.groupService.save(group);
+					this.groupDirectory.register(group);
 				}
 			}
 			
 			if (group == null) {
 				if (this.createMissingGroup) {
 					this.logger.trace("Creating new group for role: {}", role);
-					boolean syncAsOrg = this.isRoleToBeOrganization(role.getKey());
+					boolean syncAsOrg = this.isRoleToBeOrganization(role.getKey(), tenantId);
 					this.logger.trace("Creating new group as {}: {}", syncAsOrg ? "organization" : "capability", role);
 					String name = this.keycloakRoleToApsGroupName(role.getValue());
 					String externalId = this.keycloakRoleToApsGroupExternalId(role.getKey());
 					int type = syncAsOrg ? Group.TYPE_FUNCTIONAL_GROUP : Group.TYPE_SYSTEM_GROUP;
 					this.logger.trace("Creating new group: {} ({}) [type: {}]", name, externalId, type);
 					group = this.groupService.createGroupFromExternalStore(name, tenantId, type, null, externalId, new Date());
+					this.groupDirectory.register(group);
+					this.metrics.increment(MetricsService.GROUPS_CREATED);
 				} else {
 	    			this.logger.debug("Group does not exist; group creation is disabled: {}", role);
 				}
 			}
 
-			if (group != null && this.syncGroupAdd) {
-				this.logger.trace("Adding user '{}' to group '{}'", user.getExternalId(), group.getName());
-				this.groupService.addUserToGroup(group, userWithGroups);
+			if (group == null) {
+				// nothing to add the user to
+			} else if (this.syncGroupAdd) {
+				this.logger.trace("Adding user '{}' to group '{}'", user.getExternalId(), role.getValue());
+				this.groupService.addUserToGroup(group, member);
+				this.metrics.increment(MetricsService.MEMBERSHIPS_ADDED);
 			} else {
-				this.logger.debug("User/group membership sync disabled; not adding user to group: {} => {}", user.getExternalId(), group.getName());
+				this.logger.debug("User/group membership sync disabled; not adding user to group: {} => {}", user.getExternalId(), role.getValue());
 			}
 		}
     }
     
-    private String keycloakRoleToApsGroupExternalId(String role) {
-    	return this.externalIdmSource + "_" + role;
+    /**
+     * A digest of the user and their mapped roles.  The user ID is included
+     * so a user that is removed and recreated is never considered in sync.
+     */
+    private String fingerprint(Long userId, Map<String, String> roles) {
+    	MessageDigest digest;
+    	try {
+    		digest = MessageDigest.getInstance("SHA-256");
+    	} catch (NoSuchAlgorithmException nsae) {
+    		throw new IllegalStateException(nsae);
+    	}
+    	
+    	digest.update(String.valueOf(userId).getBytes(StandardCharsets.UTF_8));
+    	for (Entry<String, String> role : new TreeMap<>(roles).entrySet()) {
+    		digest.update((byte)0);
+    		digest.update(role.getKey().getBytes(StandardCharsets.UTF_8));
+    		digest.update((byte)1);
+    		digest.update(String.valueOf(role.getValue()).getBytes(StandardCharsets.UTF_8));
+    	}
+    	
+    	return Base64.getEncoder().encodeToString(digest.digest());
     }
     
-    private String apsGroupExternalIdToKeycloakRole(String externalId) {
-    	int underscorePos = externalId.indexOf('_');
-    	return underscorePos < 0 ? externalId : externalId.substring(underscorePos + 1);
+    private String keycloakRoleToApsGroupExternalId(String role) {
+    	return this.membershipPlanner.toExternalId(role);
     }
     
     private String keycloakRoleToApsGroupName(String role) {
     	return role;
     }
     
-    private String apsGroupNameToKeycloakRole(String externalId) {
-    	return externalId;
+    private boolean isRoleToBeOrganization(String role, Long tenantId) {
+    	return this.getTenantState(tenantId).engine.map(role).isOrganization();
     }
     
-    private boolean isRoleToBeOrganization(String role) {
-    	if (this.capIncludes.isEmpty())
-    		return true;
+    
+    
+    /**
+     * The rules and caches of a single tenant.
+     */
+    private static class TenantState {
+    	
+    	private final RoleMappingEngine engine;
+    	
+        /**
+         * A fingerprint of the mapped roles at the last successful sync, keyed
+         * by the external user ID.
+         */
+    	private final ExpiringLruCache<String, String> syncFingerprints;
+    	
+    	/**
+    	 * Users recently found to not exist, while user creation is disabled.
+    	 */
+    	private final ExpiringLruCache<String, Boolean> absentUsers;
+    	
+    	/**
+    	 * Users recently found to be owned by another external source.
+    	 */
+    	private final ExpiringLruCache<String, Boolean> foreignUsers;
+    	
+    	/**
+    	 * Users and, when unchanged since, their group memberships.
+    	 */
+    	private final ExpiringLruCache<String, UserRef> identities;
+    	
+    	void clearUsers() {
+    		if (this.syncFingerprints != null)
+    			this.syncFingerprints.clear();
+    		if (this.absentUsers != null)
+    			this.absentUsers.clear();
+    		if (this.foreignUsers != null)
+    			this.foreignUsers.clear();
+    		if (this.identities != null)
+    			this.identities.clear();
+    	}
+    	
+    	void forgetUser(String email) {
+    		if (this.syncFingerprints != null)
+    			this.syncFingerprints.remove(email);
+    		if (this.absentUsers != null)
+    			this.absentUsers.remove(email);
+    		if (this.foreignUsers != null)
+    			this.foreignUsers.remove(email);
+    		if (this.identities != null)
+    			this.identities.remove(email);
+    	}
+    	
+    	TenantState(RoleMappingEngine engine, ExpiringLruCache<String, String> syncFingerprints,
+    			ExpiringLruCache<String, Boolean> absentUsers, ExpiringLruCache<String, Boolean> foreignUsers,
+    			ExpiringLruCache<String, UserRef> identities) {
+    		this.engine = engine;
+    		this.syncFingerprints = syncFingerprints;
+    		this.absentUsers = absentUsers;
+    		this.foreignUsers = foreignUsers;
+    		this.identities = identities;
+    	}
     	
-		for (Pattern regex : this.capIncludes) {
-			Matcher matcher = regex.matcher(role);
-			if (matcher.matches())
-				return false;
-		}
-		
-		return true;
     }
     
 }
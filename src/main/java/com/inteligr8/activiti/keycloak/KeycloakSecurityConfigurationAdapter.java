@@ -28,6 +28,8 @@ import org.springframework.stereotype.Component;
 import com.inteligr8.activiti.ActivitiSecurityConfigAdapter;
 import com.inteligr8.activiti.auth.Authenticator;
 import com.inteligr8.activiti.auth.InterceptingAuthenticationProvider;
+import com.inteligr8.activiti.auth.PostAuthenticationExecutor;
+import com.inteligr8.activiti.metrics.MetricsService;
 
 /**
  * This class/bean injects a custom keycloak authentication provider into the
@@ -48,10 +50,19 @@ public class KeycloakSecurityConfigurationAdapter implements ActivitiSecurityCon
     @Value("${keycloak-ext.keycloak.priority:-5}")
     private int priority;
     
+    @Value("${keycloak-ext.singleFlight.waitMillis:3000}")
+    private long singleFlightWaitMillis;
+    
     @Autowired
     @Qualifier("keycloak-ext.activiti-app.authenticator")
     private Authenticator authenticator;
     
+    @Autowired
+    private PostAuthenticationExecutor postAuthExecutor;
+    
+    @Autowired
+    private MetricsService metrics;
+    
     protected Authenticator getAuthenticator() {
 		return this.authenticator;
 	}
@@ -75,7 +86,7 @@ public class KeycloakSecurityConfigurationAdapter implements ActivitiSecurityCon
 		KeycloakAuthenticationProvider provider = new KeycloakAuthenticationProvider();
 		provider.setGrantedAuthoritiesMapper(new SimpleAuthorityMapper());
 
-		auth.authenticationProvider(new InterceptingAuthenticationProvider(provider, this.getAuthenticator()));
+		auth.authenticationProvider(new InterceptingAuthenticationProvider(provider, this.getAuthenticator(), this.postAuthExecutor, this.metrics, this.singleFlightWaitMillis));
 	}
 
 }
@@ -0,0 +1,204 @@
+/*
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.inteligr8.activiti.keycloak;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import com.inteligr8.activiti.GroupRef;
+
+/**
+ * This class reconciles a user's current groups with their mapped roles,
+ * without touching the database or either input.  It indexes the roles by
+ * key and by value once, so the plan is computed in time linear to the number
+ * of groups plus the number of roles.
+ *
+ * A group with an external ID is matched to the roles with the corresponding
+ * value.  A group without an external ID (internal) is matched to the role
+ * with its name as the key.  Each role satisfies at most one group; any other
+ * group that would match the same role is to be removed.
+ *
+ * @author brian@inteligr8.com
+ */
+public class MembershipPlanner {
+
+    private final String externalIdmSource;
+    private final boolean syncInternalGroups;
+
+    /**
+     * @param externalIdmSource The external source of the groups this extension creates
+     * @param syncInternalGroups true to match groups without an external ID by name; false to ignore them
+     */
+    public MembershipPlanner(String externalIdmSource, boolean syncInternalGroups) {
+    	this.externalIdmSource = externalIdmSource;
+    	this.syncInternalGroups = syncInternalGroups;
+    }
+
+    public String toExternalId(String role) {
+    	return this.externalIdmSource + "_" + role;
+    }
+
+    public String fromExternalId(String externalId) {
+    	int underscorePos = externalId.indexOf('_');
+    	return underscorePos < 0 ? externalId : externalId.substring(underscorePos + 1);
+    }
+
+    /**
+     * @param groups The groups the user is currently a member of
+     * @param roles The user's mapped roles; the keys are roles and the values formatted roles
+     * @param tenantId The user's tenant; groups without a tenant are to be moved to it
+     * @return An immutable plan
+     */
+    public Plan plan(Collection<GroupRef> groups, Map<String, String> roles, Long tenantId) {
+    	Map<String, List<String>> keysByValue = new HashMap<>(roles.size() * 2);
+    	for (Entry<String, String> role : roles.entrySet())
+    		if (role.getValue() != null)
+    			keysByValue.computeIfAbsent(role.getValue(), value -> new ArrayList<>(1)).add(role.getKey());
+
+    	Set<String> satisfiedKeys = new HashSet<>();
+    	List<GroupRef> keep = new ArrayList<>();
+    	List<GroupRef> fixTenant = new ArrayList<>();
+    	List<Relink> relink = new ArrayList<>();
+    	List<GroupRef> remove = new ArrayList<>();
+
+    	for (GroupRef group : groups) {
+    		if (group.getExternalId() == null && !this.syncInternalGroups)
+    			continue;
+
+    		if (group.getExternalId() != null && this.satisfy(keysByValue.get(this.fromExternalId(group.getExternalId())), satisfiedKeys)) {
+    			if (group.getTenantId() == null && tenantId != null) {
+    				fixTenant.add(group);
+    			} else {
+    				keep.add(group);
+    			}
+    		} else if (group.getExternalId() == null && roles.containsKey(group.getName()) && satisfiedKeys.add(group.getName())) {
+    			relink.add(new Relink(group, this.toExternalId(group.getName())));
+    		} else {
+    			remove.add(group);
+    		}
+    	}
+
+    	Map<String, String> add = new LinkedHashMap<>();
+    	for (Entry<String, String> role : roles.entrySet())
+    		if (!satisfiedKeys.contains(role.getKey()))
+    			add.put(role.getKey(), role.getValue());
+
+    	return new Plan(keep, fixTenant, relink, remove, add);
+    }
+
+    /**
+     * All the roles with the same value satisfy a group together; unless one
+     * of them already satisfied another group.
+     */
+    private boolean satisfy(List<String> keys, Set<String> satisfiedKeys) {
+    	if (keys == null)
+    		return false;
+
+    	boolean satisfied = false;
+    	for (String key : keys)
+    		satisfied = satisfiedKeys.add(key) || satisfied;
+    	return satisfied;
+    }
+
+
+
+    public static class Plan {
+
+    	private final List<GroupRef> keep;
+    	private final List<GroupRef> fixTenant;
+    	private final List<Relink> relink;
+    	private final List<GroupRef> remove;
+    	private final Map<String, String> add;
+
+    	Plan(List<GroupRef> keep, List<GroupRef> fixTenant, List<Relink> relink, List<GroupRef> remove, Map<String, String> add) {
+    		this.keep = Collections.unmodifiableList(keep);
+    		this.fixTenant = Collections.unmodifiableList(fixTenant);
+    		this.relink = Collections.unmodifiableList(relink);
+    		this.remove = Collections.unmodifiableList(remove);
+    		this.add = Collections.unmodifiableMap(add);
+    	}
+
+    	/**
+    	 * @return The groups that need no change
+    	 */
+    	public List<GroupRef> getKeep() {
+			return this.keep;
+		}
+
+    	/**
+    	 * @return The groups without a tenant that are to be moved to the user's tenant
+    	 */
+    	public List<GroupRef> getFixTenant() {
+			return this.fixTenant;
+		}
+
+    	/**
+    	 * @return The internal groups that are to be registered as external
+    	 */
+    	public List<Relink> getRelink() {
+			return this.relink;
+		}
+
+    	/**
+    	 * @return The groups the user has no corresponding role for
+    	 */
+    	public List<GroupRef> getRemove() {
+			return this.remove;
+		}
+
+    	/**
+    	 * @return The roles without a corresponding group membership; keys are roles and values formatted roles
+    	 */
+    	public Map<String, String> getAdd() {
+			return this.add;
+		}
+
+    	@Override
+    	public String toString() {
+    		return "keep: " + this.keep.size() + "; fixTenant: " + this.fixTenant.size() + "; relink: " + this.relink.size() +
+    				"; remove: " + this.remove.size() + "; add: " + this.add.size();
+    	}
+
+    }
+
+    public static class Relink {
+
+    	private final GroupRef group;
+    	private final String externalId;
+
+    	Relink(GroupRef group, String externalId) {
+    		this.group = group;
+    		this.externalId = externalId;
+    	}
+
+    	public GroupRef getGroup() {
+			return this.group;
+		}
+
+    	public String getExternalId() {
+			return this.externalId;
+		}
+
+    }
+
+}
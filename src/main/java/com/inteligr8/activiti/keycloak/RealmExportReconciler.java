@@ -0,0 +1,403 @@
+/*
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.inteligr8.activiti.keycloak;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.inteligr8.activiti.DataFixer;
+import com.inteligr8.activiti.TenantFinderService;
+import com.inteligr8.activiti.TransactionExecutor;
+
+/**
+ * This class/bean provisions users and their group memberships ahead of their
+ * first login, from a Keycloak realm export file on local disk.  The same
+ * include/exclude/format rules are applied as on login, so the login finds
+ * everything already in place.
+ * 
+ * The file is streamed, so only one user is held in memory at a time.  Users
+ * are committed in batches; the number of committed users is recorded in a
+ * checkpoint file next to the export.  If a batch fails, its users are
+ * retried one transaction at a time, so one bad user does not lose the rest.
+ * Users that still fail, or whose sync is deferred, are recorded in the
+ * checkpoint as pending and are retried by the next run.  An interrupted run
+ * resumes after the last committed batch.  A completed run is not repeated
+ * until the export file changes.
+ * 
+ * The roles of a user are their direct realm and client roles, plus those of
+ * their groups.  Group roles are only known when the groups precede the users
+ * in the file, which is how Keycloak exports them.  Composite roles are not
+ * expanded.  Users that are disabled, are service accounts or do not have an
+ * email address are skipped.
+ * 
+ * @author brian@inteligr8.com
+ */
+@Component
+public class RealmExportReconciler implements DataFixer, DisposableBean {
+	
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    
+    @Autowired
+    private KeycloakActivitiAppAuthenticator authenticator;
+    
+    @Autowired
+    private TenantFinderService tenantFinderService;
+    
+    @Autowired
+    private TransactionExecutor transactionExecutor;
+    
+    @Value("${keycloak-ext.reconcile.realmExport.file:#{null}}")
+    private String exportFile;
+    
+    @Value("${keycloak-ext.reconcile.batchSize:500}")
+    private int batchSize;
+    
+    @Value("${keycloak-ext.reconcile.intervalMinutes:0}")
+    private long intervalMinutes;
+    
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private ScheduledExecutorService scheduler;
+    
+    @Override
+    public boolean isDeferrable() {
+    	return true;
+    }
+    
+    @Override
+    public void fix() {
+		this.logger.trace("fix()");
+		
+    	if (this.exportFile == null || this.exportFile.length() == 0)
+    		return;
+    	
+    	this.reconcile();
+    	
+    	if (this.intervalMinutes > 0L && this.scheduler == null) {
+    		this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+    			Thread thread = new Thread(runnable, "keycloak-ext-reconcile");
+    			thread.setDaemon(true);
+    			return thread;
+    		});
+    		this.scheduler.scheduleWithFixedDelay(this::reconcile, this.intervalMinutes, this.intervalMinutes, TimeUnit.MINUTES);
+    	}
+    }
+    
+    @Override
+    public void destroy() {
+    	if (this.scheduler != null)
+    		this.scheduler.shutdownNow();
+    }
+    
+    /**
+     * This method reconciles the users in the realm export file, resuming
+     * from the last checkpoint.  Any failure is logged, not thrown.
+     */
+    public synchronized void reconcile() {
+    	File file = new File(this.exportFile);
+    	if (!file.isFile()) {
+    		this.logger.warn("The realm export file does not exist: {}", file);
+    		return;
+    	}
+    	
+    	File checkpointFile = new File(file.getPath() + ".checkpoint");
+    	Checkpoint checkpoint = Checkpoint.load(checkpointFile, file);
+    	if (checkpoint.completed) {
+    		this.logger.debug("The realm export file has not changed since it was reconciled: {}", file);
+    		return;
+    	}
+    	
+    	if (checkpoint.committed > 0L)
+    		this.logger.info("Resuming reconciliation of realm export after {} users: {}", checkpoint.committed, file);
+    	
+    	try {
+    		this.reconcile(file, checkpointFile, checkpoint);
+    	} catch (IOException | RuntimeException e) {
+    		this.logger.error("The reconciliation of the realm export failed after {} users: {}", checkpoint.committed, file, e);
+    	}
+    }
+    
+    private void reconcile(File file, File checkpointFile, Checkpoint checkpoint) throws IOException {
+    	Long tenantId = this.tenantFinderService.findTenantId();
+    	Map<String, GroupRoles> groupRoles = new HashMap<>();
+    	List<RealmUser> batch = new ArrayList<>(this.batchSize);
+    	long index = 0L;
+    	
+    	try (JsonParser parser = this.objectMapper.getFactory().createParser(file)) {
+    		if (parser.nextToken() != JsonToken.START_OBJECT)
+    			throw new IOException("A realm export must be a JSON object");
+    		
+    		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+    			String field = parser.getCurrentName();
+    			JsonToken token = parser.nextToken();
+    			
+    			if ("groups".equals(field) && token == JsonToken.START_ARRAY) {
+    				while (parser.nextToken() == JsonToken.START_OBJECT)
+    					this.indexGroup(this.objectMapper.readTree(parser), "", groupRoles);
+    				this.logger.debug("Indexed the roles of {} groups", groupRoles.size());
+    			} else if ("users".equals(field) && token == JsonToken.START_ARRAY) {
+    				while (parser.nextToken() == JsonToken.START_OBJECT) {
+    					JsonNode userNode = this.objectMapper.readTree(parser);
+    					if (index++ < checkpoint.committed && !checkpoint.pending.remove(userNode.path("email").asText()))
+    						continue;
+    					
+    					batch.add(this.toRealmUser(userNode, groupRoles));
+    					if (batch.size() >= this.batchSize) {
+    						checkpoint.pending.addAll(this.commit(batch, tenantId));
+    						checkpoint.committed = Math.max(checkpoint.committed, index);
+    						checkpoint.save(checkpointFile);
+    						batch.clear();
+    					}
+    				}
+    			} else {
+    				parser.skipChildren();
+    			}
+    		}
+    	}
+    	
+    	if (!batch.isEmpty())
+    		checkpoint.pending.addAll(this.commit(batch, tenantId));
+    	checkpoint.committed = Math.max(checkpoint.committed, index);
+    	checkpoint.completed = checkpoint.pending.isEmpty();
+    	checkpoint.save(checkpointFile);
+    	if (checkpoint.completed) {
+    		this.logger.info("Reconciled {} users from realm export: {}", index, file);
+    	} else {
+    		this.logger.warn("Reconciled {} users from realm export; {} users are pending and will be retried: {}", index, checkpoint.pending.size(), file);
+    	}
+    }
+    
+    /**
+     * The batch is committed in a single transaction.  If that fails, it is
+     * rolled back and each user is committed in its own transaction.
+     * 
+     * @return The email addresses of the users that were not reconciled
+     */
+    private Set<String> commit(List<RealmUser> batch, Long tenantId) {
+    	this.logger.debug("Reconciling a batch of {} users", batch.size());
+    	
+    	Set<String> pending = new HashSet<>();
+    	try {
+    		this.transactionExecutor.execute(() -> {
+    			pending.clear();
+    			for (RealmUser user : batch)
+    				if (user != null && !this.reconcileUser(user, tenantId))
+    					pending.add(user.email);
+    		});
+    		return pending;
+    	} catch (RuntimeException re) {
+    		this.logger.warn("Unable to reconcile a batch of users; retrying them one at a time", re);
+    	}
+    	
+    	pending.clear();
+    	for (RealmUser user : batch) {
+    		if (user == null)
+    			continue;
+    		
+    		try {
+    			boolean[] reconciled = new boolean[1];
+    			this.transactionExecutor.execute(() -> reconciled[0] = this.reconcileUser(user, tenantId));
+    			if (!reconciled[0])
+    				pending.add(user.email);
+    		} catch (RuntimeException re) {
+    			this.logger.warn("Unable to reconcile user: {}", user.email, re);
+    			pending.add(user.email);
+    		}
+    	}
+    	return pending;
+    }
+    
+    private boolean reconcileUser(RealmUser user, Long tenantId) {
+    	Map<String, String> roles = this.authenticator.mapRolesForTenant(user.realmRoles, user.clientRoles, tenantId);
+    	boolean reconciled = this.authenticator.reconcileUser(user.email, user.firstName, user.lastName, roles, tenantId);
+    	if (!reconciled)
+    		this.logger.debug("The user was not reconciled: {}", user.email);
+    	return reconciled;
+    }
+    
+    /**
+     * @return A user to reconcile; null if the user is to be skipped
+     */
+    private RealmUser toRealmUser(JsonNode userNode, Map<String, GroupRoles> groupRoles) {
+    	String email = userNode.path("email").asText(null);
+    	if (email == null || email.length() == 0 || !userNode.path("enabled").asBoolean(true) || userNode.hasNonNull("serviceAccountClientId")) {
+    		this.logger.trace("Skipping user: {}", userNode.path("username").asText());
+    		return null;
+    	}
+    	
+    	RealmUser user = new RealmUser(email, userNode.path("firstName").asText(null), userNode.path("lastName").asText(null));
+    	user.add(this.toRoles(userNode), this.toClientRoles(userNode));
+    	
+    	for (JsonNode groupPath : userNode.path("groups")) {
+    		GroupRoles roles = groupRoles.get(groupPath.asText());
+    		if (roles != null)
+    			user.add(roles.realmRoles, roles.clientRoles);
+    	}
+    	
+    	return user;
+    }
+    
+    private void indexGroup(JsonNode groupNode, String parentPath, Map<String, GroupRoles> groupRoles) {
+    	String path = parentPath + "/" + groupNode.path("name").asText();
+    	GroupRoles parentRoles = groupRoles.get(parentPath);
+    	
+    	// subgroups inherit the roles of their parent group
+    	GroupRoles roles = new GroupRoles();
+    	if (parentRoles != null)
+    		roles.add(parentRoles.realmRoles, parentRoles.clientRoles);
+    	roles.add(this.toRoles(groupNode), this.toClientRoles(groupNode));
+    	groupRoles.put(path, roles);
+    	
+    	for (JsonNode subGroupNode : groupNode.path("subGroups"))
+    		this.indexGroup(subGroupNode, path, groupRoles);
+    }
+    
+    private Collection<String> toRoles(JsonNode node) {
+    	List<String> roles = new ArrayList<>();
+    	for (JsonNode role : node.path("realmRoles"))
+    		roles.add(role.asText());
+    	return roles;
+    }
+    
+    private Map<String, Collection<String>> toClientRoles(JsonNode node) {
+    	Map<String, Collection<String>> clientRoles = new HashMap<>();
+    	Iterator<Entry<String, JsonNode>> clients = node.path("clientRoles").fields();
+    	while (clients.hasNext()) {
+    		Entry<String, JsonNode> client = clients.next();
+    		List<String> roles = new ArrayList<>();
+    		for (JsonNode role : client.getValue())
+    			roles.add(role.asText());
+    		clientRoles.put(client.getKey(), roles);
+    	}
+    	return clientRoles;
+    }
+    
+    
+    
+    private static class GroupRoles {
+    	
+    	final Set<String> realmRoles = new HashSet<>();
+    	final Map<String, Set<String>> clientRoles = new HashMap<>();
+    	
+    	void add(Collection<String> realmRoles, Map<String, ? extends Collection<String>> clientRoles) {
+    		this.realmRoles.addAll(realmRoles);
+    		for (Entry<String, ? extends Collection<String>> client : clientRoles.entrySet())
+    			this.clientRoles.computeIfAbsent(client.getKey(), key -> new HashSet<>()).addAll(client.getValue());
+    	}
+    	
+    }
+    
+    private static class RealmUser extends GroupRoles {
+    	
+    	final String email;
+    	final String firstName;
+    	final String lastName;
+    	
+    	RealmUser(String email, String firstName, String lastName) {
+    		this.email = email;
+    		this.firstName = firstName;
+    		this.lastName = lastName;
+    	}
+    	
+    }
+    
+    private static class Checkpoint {
+    	
+    	static Checkpoint load(File checkpointFile, File exportFile) {
+    		Checkpoint checkpoint = new Checkpoint(exportFile.length(), exportFile.lastModified());
+    		if (!checkpointFile.isFile())
+    			return checkpoint;
+    		
+    		Properties props = new Properties();
+    		try (InputStream istream = Files.newInputStream(checkpointFile.toPath())) {
+    			props.load(istream);
+    		} catch (IOException ie) {
+    			LoggerFactory.getLogger(RealmExportReconciler.class).warn("Unable to read the checkpoint; starting over: {}", checkpointFile);
+    			return checkpoint;
+    		}
+    		
+    		// a different export file starts over
+    		if (!String.valueOf(checkpoint.length).equals(props.getProperty("source.length")) ||
+    				!String.valueOf(checkpoint.lastModified).equals(props.getProperty("source.lastModified")))
+    			return checkpoint;
+    		
+    		checkpoint.committed = Long.parseLong(props.getProperty("users.committed", "0"));
+    		checkpoint.completed = Boolean.parseBoolean(props.getProperty("completed"));
+    		String pending = props.getProperty("users.pending", "");
+    		if (pending.length() > 0)
+    			checkpoint.pending.addAll(Arrays.asList(pending.split(",")));
+    		return checkpoint;
+    	}
+    	
+    	final long length;
+    	final long lastModified;
+    	long committed = 0L;
+    	/** the email addresses of the users before `committed` that are still to be reconciled */
+    	final Set<String> pending = new LinkedHashSet<>();
+    	boolean completed = false;
+    	
+    	Checkpoint(long length, long lastModified) {
+    		this.length = length;
+    		this.lastModified = lastModified;
+    	}
+    	
+    	void save(File checkpointFile) throws IOException {
+    		Properties props = new Properties();
+    		props.setProperty("source.length", String.valueOf(this.length));
+    		props.setProperty("source.lastModified", String.valueOf(this.lastModified));
+    		props.setProperty("users.committed", String.valueOf(this.committed));
+    		props.setProperty("users.pending", String.join(",", this.pending));
+    		props.setProperty("completed", String.valueOf(this.completed));
+    		
+    		// write and move, so a crash never leaves a partial checkpoint
+    		File tempFile = new File(checkpointFile.getPath() + ".tmp");
+    		try (OutputStream ostream = Files.newOutputStream(tempFile.toPath())) {
+    			props.store(ostream, null);
+    		}
+    		Files.move(tempFile.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    	}
+    	
+    }
+
+}
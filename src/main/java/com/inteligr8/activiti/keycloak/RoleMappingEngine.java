@@ -0,0 +1,237 @@
+/*
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.inteligr8.activiti.keycloak;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.util.Pair;
+
+/**
+ * This class evaluates the configured include, exclude, format and
+ * capability rules against roles.  Each rule set is compiled into a single
+ * combined regular expression and the outcome for each distinct role is
+ * memoized, so a role is only evaluated once no matter how many users or
+ * logins carry it.
+ *
+ * The memo is bounded.  Once it is full, new roles are still evaluated, but
+ * their outcome is not remembered.
+ *
+ * @author brian@inteligr8.com
+ */
+public class RoleMappingEngine {
+
+	private static final Pattern BACKREFERENCE = Pattern.compile("\\\\[1-9]|\\\\k<");
+	private static final Pattern NAMED_GROUP = Pattern.compile("\\(\\?<([a-zA-Z][a-zA-Z0-9]*)>");
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final RuleSet includes;
+    private final RuleSet excludes;
+    private final RuleSet formatterMatches;
+    private final List<Pair<Pattern, String>> formatters;
+    private final RuleSet capIncludes;
+
+    private final int maxMemoSize;
+    private final ConcurrentMap<String, RoleMapping> memo = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public RoleMappingEngine(Collection<Pattern> includes, Collection<Pattern> excludes,
+    		List<Pair<Pattern, String>> formatters, Collection<Pattern> capIncludes, int maxMemoSize) {
+    	this.includes = new RuleSet(includes);
+    	this.excludes = new RuleSet(excludes);
+    	this.formatters = new ArrayList<>(formatters);
+    	List<Pattern> formatterPatterns = new ArrayList<>(formatters.size());
+    	for (Pair<Pattern, String> formatter : formatters)
+    		formatterPatterns.add(formatter.getFirst());
+    	this.formatterMatches = new RuleSet(formatterPatterns);
+    	this.capIncludes = new RuleSet(capIncludes);
+    	this.maxMemoSize = maxMemoSize;
+    }
+
+    /**
+     * @return true if there are any include or exclude rules; false if every role is included
+     */
+    public boolean isFiltering() {
+    	return !this.includes.isEmpty() || !this.excludes.isEmpty();
+    }
+
+    public RoleMapping map(String role) {
+    	RoleMapping mapping = this.memo.get(role);
+    	if (mapping != null) {
+    		this.hits.increment();
+    		return mapping;
+    	}
+
+    	this.misses.increment();
+    	mapping = this.evaluate(role);
+    	if (this.memo.size() < this.maxMemoSize)
+    		this.memo.putIfAbsent(role, mapping);
+    	return mapping;
+    }
+
+    private RoleMapping evaluate(String role) {
+    	boolean included = this.includes.isEmpty() || this.includes.matches(role);
+    	if (included && !this.includes.isEmpty())
+    		this.logger.debug("Role matched inclusion filter: {}", role);
+    	if (included && this.excludes.matches(role)) {
+    		this.logger.debug("Role matched exclusion filter: {}", role);
+    		included = false;
+    	}
+
+    	String formatted = role;
+    	if (this.formatterMatches.matches(role)) {
+    		for (Pair<Pattern, String> regex : this.formatters) {
+    			Matcher matcher = regex.getFirst().matcher(role);
+    			if (matcher.matches()) {
+    				this.logger.trace("Role matched formatter: {}", role);
+    				formatted = matcher.replaceFirst(regex.getSecond());
+    				this.logger.debug("Role formatted: {}", formatted);
+    				break;
+    			}
+    		}
+    	}
+
+    	boolean organization = this.capIncludes.isEmpty() || !this.capIncludes.matches(role);
+
+    	return new RoleMapping(included, formatted, organization);
+    }
+
+    public long getHits() {
+    	return this.hits.sum();
+    }
+
+    public long getMisses() {
+    	return this.misses.sum();
+    }
+
+    public int getMemoSize() {
+    	return this.memo.size();
+    }
+
+
+
+    /**
+     * The outcome of all the rules for a single role.
+     */
+    public static class RoleMapping {
+
+    	private final boolean included;
+    	private final String formatted;
+    	private final boolean organization;
+
+    	RoleMapping(boolean included, String formatted, boolean organization) {
+    		this.included = included;
+    		this.formatted = formatted;
+    		this.organization = organization;
+    	}
+
+    	/**
+    	 * @return true if the role passed the include/exclude rules
+    	 */
+    	public boolean isIncluded() {
+			return this.included;
+		}
+
+    	/**
+    	 * @return The formatted role; the role itself if no formatter matched
+    	 */
+    	public String getFormatted() {
+			return this.formatted;
+		}
+
+    	/**
+    	 * @return true if the role should be an organization; false if a capability
+    	 */
+    	public boolean isOrganization() {
+			return this.organization;
+		}
+
+    }
+
+
+
+    /**
+     * A set of patterns where a match of any one is a match of the set.  The
+     * patterns are combined into a single alternation when possible.  They
+     * are not combined when any pattern uses back-references, since their
+     * group numbers would change; or when patterns use the same group name,
+     * since a name may only be used once in a pattern.
+     */
+    static class RuleSet {
+
+    	private final Pattern combined;
+    	private final List<Pattern> patterns;
+
+    	RuleSet(Collection<Pattern> patterns) {
+    		this.patterns = new ArrayList<>(patterns);
+    		this.combined = this.combine(this.patterns);
+    	}
+
+    	private Pattern combine(List<Pattern> patterns) {
+    		if (patterns.size() < 2)
+    			return null;
+
+    		StringBuilder regex = new StringBuilder();
+    		Set<String> groupNames = new HashSet<>();
+    		for (Pattern pattern : patterns) {
+    			if (pattern.flags() != 0 || BACKREFERENCE.matcher(pattern.pattern()).find())
+    				return null;
+    			Matcher namedGroup = NAMED_GROUP.matcher(pattern.pattern());
+    			while (namedGroup.find())
+    				if (!groupNames.add(namedGroup.group(1)))
+    					return null;
+    			if (regex.length() > 0)
+    				regex.append('|');
+    			regex.append("(?:").append(pattern.pattern()).append(')');
+    		}
+
+    		try {
+    			return Pattern.compile(regex.toString());
+    		} catch (PatternSyntaxException pse) {
+    			// each pattern is valid on its own; just match them one at a time
+    			return null;
+    		}
+    	}
+
+    	boolean isEmpty() {
+    		return this.patterns.isEmpty();
+    	}
+
+    	boolean matches(String str) {
+    		if (this.combined != null)
+    			return this.combined.matcher(str).matches();
+
+    		for (Pattern pattern : this.patterns)
+    			if (pattern.matcher(str).matches())
+    				return true;
+    		return false;
+    	}
+
+    }
+
+}
@@ -0,0 +1,39 @@
+/*
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.inteligr8.activiti.keycloak;
+
+import org.keycloak.representations.AccessToken;
+import org.springframework.security.core.Authentication;
+
+/**
+ * This interface allows the tenant of each login to be determined from the
+ * login itself, instead of using the single configured tenant.  Strategies
+ * are called on every login, so they should not query the database.
+ * 
+ * When several strategy beans are defined, the first to determine a tenant
+ * wins.  When none does, the configured tenant is used.
+ * 
+ * @author brian@inteligr8.com
+ */
+public interface TenantResolutionStrategy {
+	
+	/**
+	 * @param auth The authentication of the login
+	 * @param atoken The Keycloak access token of the login; may be null
+	 * @return A tenant ID; null if the tenant could not be determined
+	 */
+	Long resolveTenantId(Authentication auth, AccessToken atoken);
+
+}
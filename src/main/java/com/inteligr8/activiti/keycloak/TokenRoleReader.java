@@ -0,0 +1,128 @@
+/*
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.inteligr8.activiti.keycloak;
+
+import java.io.IOException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * This class reads the roles straight from the raw (encoded) access token,
+ * with a streaming JSON parser.  Only the `realm_access` claim and the
+ * `resource_access` entries of included clients are read; all other claims
+ * and clients are skipped without being materialized.  Each role is filtered
+ * and formatted as it is read, so no intermediate collections are built.
+ * 
+ * The token signature is not verified here; the token must have already been
+ * verified by the Keycloak adapter.
+ * 
+ * @author brian@inteligr8.com
+ */
+public class TokenRoleReader {
+	
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+	
+	private final Predicate<String> resourceFilter;
+	
+	/**
+	 * @param resourceFilter Determines if the roles of a client/resource are to be read
+	 */
+	public TokenRoleReader(Predicate<String> resourceFilter) {
+		this.resourceFilter = resourceFilter;
+	}
+	
+	/**
+	 * @param tokenString A JWS compact serialized access token
+	 * @param engine The rules to apply to the roles
+	 * @return A map of the included roles to their formatted role; null if the token has no role information
+	 * @throws IOException The token is not a well-formed JWT
+	 */
+	public Map<String, String> read(String tokenString, RoleMappingEngine engine) throws IOException {
+		int payloadStart = tokenString.indexOf('.') + 1;
+		int payloadEnd = tokenString.indexOf('.', payloadStart);
+		if (payloadStart == 0 || payloadEnd < 0)
+			throw new IOException("The token is not a JWS compact serialization");
+		
+		byte[] payload;
+		try {
+			payload = Base64.getUrlDecoder().decode(tokenString.substring(payloadStart, payloadEnd));
+		} catch (IllegalArgumentException iae) {
+			throw new IOException("The token payload is not base64url encoded", iae);
+		}
+		
+		Map<String, String> authorities = new HashMap<>();
+		boolean hasRoleInfo = false;
+		
+		try (JsonParser jparser = JSON_FACTORY.createParser(payload)) {
+			if (jparser.nextToken() != JsonToken.START_OBJECT)
+				throw new IOException("The token payload is not a JSON object");
+			
+			while (jparser.nextToken() == JsonToken.FIELD_NAME) {
+				String claim = jparser.getCurrentName();
+				JsonToken value = jparser.nextToken();
+				if (value == JsonToken.START_OBJECT && "realm_access".equals(claim)) {
+					hasRoleInfo = true;
+					this.readAccess(jparser, engine, authorities);
+				} else if (value == JsonToken.START_OBJECT && "resource_access".equals(claim)) {
+					while (jparser.nextToken() == JsonToken.FIELD_NAME) {
+						String resource = jparser.getCurrentName();
+						hasRoleInfo = true;
+						if (jparser.nextToken() == JsonToken.START_OBJECT && this.resourceFilter.test(resource)) {
+							this.readAccess(jparser, engine, authorities);
+						} else {
+							jparser.skipChildren();
+						}
+					}
+				} else {
+					jparser.skipChildren();
+				}
+			}
+		}
+		
+		return hasRoleInfo ? authorities : null;
+	}
+	
+	/**
+	 * @param jparser A parser positioned at the start of an `Access` object; it is left at its end
+	 */
+	private void readAccess(JsonParser jparser, RoleMappingEngine engine, Map<String, String> authorities) throws IOException {
+		while (jparser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = jparser.getCurrentName();
+			if (jparser.nextToken() == JsonToken.START_ARRAY && "roles".equals(field)) {
+				for (JsonToken element = jparser.nextToken(); element != JsonToken.END_ARRAY; element = jparser.nextToken()) {
+					// anything other than a role name, like a null, is skipped
+					if (element != JsonToken.VALUE_STRING) {
+						jparser.skipChildren();
+						continue;
+					}
+					
+					String role = jparser.getText();
+					RoleMappingEngine.RoleMapping mapping = engine.map(role);
+					if (mapping.isIncluded())
+						authorities.put(role, mapping.getFormatted());
+				}
+			} else {
+				jparser.skipChildren();
+			}
+		}
+	}
+	
+}
@@ -0,0 +1,40 @@
+/*
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.inteligr8.activiti.metrics;
+
+/**
+ * This interface allows the metrics of this extension to be recorded to any
+ * metrics system.
+ * 
+ * Implementations must be thread-safe and cheap; they are called on the
+ * login request thread.
+ * 
+ * @author brian@inteligr8.com
+ */
+public interface MetricsRegistry {
+	
+	/**
+	 * @param name A counter name
+	 * @param amount The amount to add to the counter
+	 */
+	void increment(String name, long amount);
+	
+	/**
+	 * @param name A timer name
+	 * @param nanos The elapsed time of a single execution, in nanoseconds
+	 */
+	void record(String name, long nanos);
+
+}
@@ -0,0 +1,109 @@
+/*
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.inteligr8.activiti.metrics;
+
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationContext;
+import org.springframework.stereotype.Component;
+import org.springframework.util.ClassUtils;
+
+/**
+ * This class/bean records the metrics of this extension.  The metrics are
+ * recorded to a `MetricsRegistry` bean, if one is defined; otherwise to
+ * Micrometer, if it is on the classpath; otherwise to an in-memory
+ * `StripedMetricsRegistry`.
+ * 
+ * @author brian@inteligr8.com
+ */
+@Component
+public class MetricsService implements InitializingBean {
+	
+	public static final String PRE_AUTHENTICATE = "keycloak-ext.auth.preAuthenticate";
+	public static final String AUTHENTICATE = "keycloak-ext.auth.authenticate";
+	public static final String POST_AUTHENTICATE = "keycloak-ext.auth.postAuthenticate";
+	
+	public static final String USERS_CREATED = "keycloak-ext.sync.users.created";
+	public static final String USERS_LINKED = "keycloak-ext.sync.users.linked";
+	public static final String GROUPS_CREATED = "keycloak-ext.sync.groups.created";
+	public static final String GROUPS_TENANT_FIXED = "keycloak-ext.sync.groups.tenantFixed";
+	public static final String MEMBERSHIPS_ADDED = "keycloak-ext.sync.memberships.added";
+	public static final String MEMBERSHIPS_REMOVED = "keycloak-ext.sync.memberships.removed";
+	public static final String SYNCS_SKIPPED = "keycloak-ext.sync.skipped";
+	public static final String USER_LOOKUPS_SKIPPED = "keycloak-ext.sync.users.lookupSkipped";
+	public static final String SYNCS_QUEUED = "keycloak-ext.sync.queued";
+	public static final String SYNCS_THROTTLED = "keycloak-ext.sync.throttled";
+	
+	private static final String MICROMETER_CLASS = "io.micrometer.core.instrument.MeterRegistry";
+	
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    
+    @Autowired(required = false)
+    private List<MetricsRegistry> registries;
+    
+    @Autowired
+    private ApplicationContext context;
+    
+    @Value("${keycloak-ext.metrics.enabled:true}")
+    private boolean enabled;
+    
+    private MetricsRegistry registry;
+    
+    @Override
+    public void afterPropertiesSet() {
+    	if (!this.enabled) {
+    		this.logger.info("Metrics are disabled");
+    	} else if (this.registries != null && !this.registries.isEmpty()) {
+    		this.registry = this.registries.iterator().next();
+    		this.logger.info("Recording metrics to: {}", this.registry.getClass());
+    	} else if (ClassUtils.isPresent(MICROMETER_CLASS, this.getClass().getClassLoader())) {
+    		this.registry = MicrometerMetricsRegistry.create(this.context);
+    		this.logger.info("Recording metrics to Micrometer");
+    	} else {
+    		this.registry = new StripedMetricsRegistry();
+    		this.logger.debug("Recording metrics in memory");
+    	}
+    }
+    
+    /**
+     * @return The registry metrics are recorded to; null if disabled
+     */
+    public MetricsRegistry getRegistry() {
+		return this.registry;
+	}
+    
+    public void increment(String name) {
+    	this.increment(name, 1L);
+    }
+    
+    public void increment(String name, long amount) {
+    	if (this.registry != null && amount != 0L)
+    		this.registry.increment(name, amount);
+    }
+    
+    /**
+     * @param startNanos The `System.nanoTime()` at the start of the execution
+     */
+    public void recordSince(String name, long startNanos) {
+    	if (this.registry != null)
+    		this.registry.record(name, System.nanoTime() - startNanos);
+    }
+
+}
@@ -0,0 +1,65 @@
+/*
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.inteligr8.activiti.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.context.ApplicationContext;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * This metrics registry binds to Micrometer.  This class must only be loaded
+ * when Micrometer is on the classpath.
+ * 
+ * @author brian@inteligr8.com
+ */
+public class MicrometerMetricsRegistry implements MetricsRegistry {
+	
+	/**
+	 * @return A registry bound to the Micrometer registry defined in the Spring context; or the global Micrometer registry
+	 */
+	static MetricsRegistry create(ApplicationContext context) {
+		Map<String, MeterRegistry> registries = context.getBeansOfType(MeterRegistry.class);
+		if (registries.size() == 1)
+			return new MicrometerMetricsRegistry(registries.values().iterator().next());
+		return new MicrometerMetricsRegistry(Metrics.globalRegistry);
+	}
+	
+	private final MeterRegistry registry;
+	private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<>();
+	
+	public MicrometerMetricsRegistry(MeterRegistry registry) {
+		this.registry = registry;
+	}
+	
+	@Override
+	public void increment(String name, long amount) {
+		this.counters.computeIfAbsent(name, key -> Counter.builder(key).register(this.registry)).increment(amount);
+	}
+	
+	@Override
+	public void record(String name, long nanos) {
+		this.timers.computeIfAbsent(name, key -> Timer.builder(key).publishPercentileHistogram().register(this.registry)).record(nanos, TimeUnit.NANOSECONDS);
+	}
+
+}
@@ -0,0 +1,153 @@
+/*
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.inteligr8.activiti.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This is the default metrics registry, used when no other metrics system is
+ * available.  Counters and histogram buckets are striped, so concurrent logins
+ * do not contend on the same memory.
+ * 
+ * The histogram buckets are fixed, so percentiles are only as precise as the
+ * bucket boundaries.
+ * 
+ * @author brian@inteligr8.com
+ */
+public class StripedMetricsRegistry implements MetricsRegistry {
+	
+	private static final long[] BUCKET_BOUNDS_MILLIS = {1L, 2L, 5L, 10L, 25L, 50L, 100L, 250L, 500L, 1000L, 2500L, 5000L, 10000L, 30000L};
+	
+	private final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+	
+	@Override
+	public void increment(String name, long amount) {
+		this.counters.computeIfAbsent(name, key -> new LongAdder()).add(amount);
+	}
+	
+	@Override
+	public void record(String name, long nanos) {
+		this.histograms.computeIfAbsent(name, key -> new LatencyHistogram()).record(nanos);
+	}
+	
+	public long getCount(String name) {
+		LongAdder counter = this.counters.get(name);
+		return counter == null ? 0L : counter.sum();
+	}
+	
+	public LatencyHistogram getHistogram(String name) {
+		return this.histograms.get(name);
+	}
+	
+	/**
+	 * @return A sorted snapshot of all the counters
+	 */
+	public Map<String, Long> getCounts() {
+		Map<String, Long> counts = new TreeMap<>();
+		for (Map.Entry<String, LongAdder> counter : this.counters.entrySet())
+			counts.put(counter.getKey(), counter.getValue().sum());
+		return Collections.unmodifiableMap(counts);
+	}
+	
+	/**
+	 * @return A sorted view of all the histograms
+	 */
+	public Map<String, LatencyHistogram> getHistograms() {
+		return Collections.unmodifiableMap(new TreeMap<>(this.histograms));
+	}
+	
+	
+	
+	public static class LatencyHistogram {
+		
+		private final LongAdder[] buckets = new LongAdder[BUCKET_BOUNDS_MILLIS.length + 1];
+		private final LongAdder totalNanos = new LongAdder();
+		private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0L);
+		
+		LatencyHistogram() {
+			for (int b = 0; b < this.buckets.length; b++)
+				this.buckets[b] = new LongAdder();
+		}
+		
+		void record(long nanos) {
+			long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+			int b = 0;
+			while (b < BUCKET_BOUNDS_MILLIS.length && millis >= BUCKET_BOUNDS_MILLIS[b])
+				b++;
+			this.buckets[b].increment();
+			this.totalNanos.add(nanos);
+			this.maxNanos.accumulate(nanos);
+		}
+		
+		public long getCount() {
+			long count = 0L;
+			for (LongAdder bucket : this.buckets)
+				count += bucket.sum();
+			return count;
+		}
+		
+		public long getTotalNanos() {
+			return this.totalNanos.sum();
+		}
+		
+		public long getMaxNanos() {
+			return this.maxNanos.get();
+		}
+		
+		/**
+		 * @param percentile A percentile between 0 and 1, like `0.99`
+		 * @return The upper bound of the bucket holding the percentile, in milliseconds; the maximum for the last bucket
+		 */
+		public long getPercentileMillis(double percentile) {
+			long[] counts = new long[this.buckets.length];
+			long count = 0L;
+			for (int b = 0; b < counts.length; b++) {
+				counts[b] = this.buckets[b].sum();
+				count += counts[b];
+			}
+			if (count == 0L)
+				return 0L;
+			
+			long rank = (long)Math.ceil(percentile * count);
+			long seen = 0L;
+			for (int b = 0; b < BUCKET_BOUNDS_MILLIS.length; b++) {
+				seen += counts[b];
+				if (seen >= rank)
+					return BUCKET_BOUNDS_MILLIS[b];
+			}
+			return TimeUnit.NANOSECONDS.toMillis(this.getMaxNanos());
+		}
+		
+		@Override
+		public String toString() {
+			long count = this.getCount();
+			return "count: " + count +
+					"; mean: " + (count == 0L ? 0L : TimeUnit.NANOSECONDS.toMillis(this.getTotalNanos() / count)) + "ms" +
+					"; p50: " + this.getPercentileMillis(0.5) + "ms" +
+					"; p99: " + this.getPercentileMillis(0.99) + "ms" +
+					"; max: " + TimeUnit.NANOSECONDS.toMillis(this.getMaxNanos()) + "ms";
+		}
+		
+	}
+
+}
@@ -0,0 +1,89 @@
+/*
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.inteligr8.activiti;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.inteligr8.activiti.metrics.MetricsService;
+
+/**
+ * This class tests that the data fixers are only ready once the deferred
+ * fixers complete, while the startup does not wait on them.
+ *
+ * @author brian@inteligr8.com
+ */
+public class DataFixerExecutorTest {
+
+	@Test
+	public void readyAfterDeferredFixer() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch fixed = new CountDownLatch(2);
+
+		DataFixer blockingFixer = () -> fixed.countDown();
+		DataFixer deferredFixer = new DataFixer() {
+			@Override
+			public void fix() {
+				try {
+					release.await();
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				}
+				fixed.countDown();
+			}
+
+			@Override
+			public boolean isDeferrable() {
+				return true;
+			}
+		};
+
+		DataFixerExecutor executor = new DataFixerExecutor();
+		this.set(executor, "metrics", new MetricsService());
+		this.set(executor, "parallelism", 2);
+		this.set(executor, "deferEnabled", true);
+
+		executor.execute(Arrays.asList(blockingFixer, deferredFixer));
+		Assert.assertEquals("The fixer that is not deferred should have completed", 1L, fixed.getCount());
+		Assert.assertFalse("The deferred fixer is still executing", executor.isReady());
+		Assert.assertFalse("The deferred fixer is still executing", executor.awaitReady(50L, TimeUnit.MILLISECONDS));
+
+		release.countDown();
+		Assert.assertTrue("The deferred fixer should have completed", executor.awaitReady(5L, TimeUnit.SECONDS));
+		Assert.assertTrue(executor.isReady());
+		Assert.assertEquals(0L, fixed.getCount());
+	}
+
+	@Test
+	public void readyWithoutDeferral() throws Exception {
+		DataFixerExecutor executor = new DataFixerExecutor();
+		this.set(executor, "metrics", new MetricsService());
+
+		executor.execute(Arrays.asList(() -> { }));
+		Assert.assertTrue(executor.isReady());
+	}
+
+	private void set(Object bean, String fieldName, Object value) throws ReflectiveOperationException {
+		Field field = bean.getClass().getDeclaredField(fieldName);
+		field.setAccessible(true);
+		field.set(bean, value);
+	}
+
+}
@@ -0,0 +1,178 @@
+/*
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.inteligr8.activiti.keycloak;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.StandardEnvironment;
+
+import com.inteligr8.activiti.ClusterCoherence;
+
+/**
+ * This class tests that the caches of one node of a cluster notice the group
+ * memberships another node changed.  Two `LoginChain` nodes share one
+ * `InMemoryApsServices` database, each with its own caches and its own
+ * `ClusterCoherence`, which is polled explicitly instead of on a schedule.
+ *
+ * The user logs in on both nodes, then on node A with new roles.  When node
+ * B logs the user in again with the original roles, it must synchronize them
+ * instead of trusting its cached fingerprint; unless it never polled, which
+ * is tested too, to show the test can fail.
+ *
+ * The change of node A is also committed late: its update is older than one
+ * node B already polled.  Node B must still notice it within the overlap of
+ * its polls; unless there is no overlap.
+ *
+ * @author brian@inteligr8.com
+ */
+public class ClusterCoherenceTest {
+
+	private static final String EMAIL = "john.doe@example.com";
+	private static final List<String> ROLES = Arrays.asList("dept_sales_1", "dept_finance_2", "dept_legal_3");
+	private static final List<String> NEW_ROLES = Arrays.asList("dept_sales_1", "dept_finance_2", "dept_legal_3", "dept_it_4");
+
+	@Test
+	public void staleWithoutPolling() throws InterruptedException {
+		Set<String> groupNames = this.execute(false, null);
+		Assert.assertEquals("Node B should have kept the memberships of node A: " + groupNames, NEW_ROLES.size(), groupNames.size());
+	}
+
+	@Test
+	public void coherentAfterPolling() throws InterruptedException {
+		Set<String> groupNames = this.execute(true, null);
+		Assert.assertEquals("Node B should have synchronized the memberships: " + groupNames, ROLES.size(), groupNames.size());
+	}
+
+	/**
+	 * A poll without any changes must not make the next login do any lookups.
+	 */
+	@Test
+	public void quietPoll() throws InterruptedException {
+		long[] steadyCalls = new long[1];
+		this.execute(true, steadyCalls);
+		Assert.assertEquals(0L, steadyCalls[0]);
+	}
+
+	@Test
+	public void lateCommitWithinOverlap() throws InterruptedException {
+		Set<String> groupNames = this.executeLateCommit("10000");
+		Assert.assertEquals("Node B should have synchronized the memberships: " + groupNames, ROLES.size(), groupNames.size());
+	}
+
+	@Test
+	public void lateCommitWithoutOverlap() throws InterruptedException {
+		Set<String> groupNames = this.executeLateCommit("0");
+		Assert.assertEquals("Node B should have kept the memberships of node A: " + groupNames, NEW_ROLES.size(), groupNames.size());
+	}
+
+	/**
+	 * @param poll true to poll before node B logs in again
+	 * @param steadyCalls Set to the calls of a login on node B after a poll without changes
+	 * @return The names of the groups of the user after node B logs in again
+	 */
+	private Set<String> execute(boolean poll, long[] steadyCalls) throws InterruptedException {
+		StandardEnvironment environment = this.newEnvironment(null);
+		InMemoryApsServices services = new InMemoryApsServices(0L, "tenant-a");
+		LoginChain nodeA = new LoginChain(services, environment);
+		LoginChain nodeB = new LoginChain(services, environment);
+		try {
+			ClusterCoherence coherenceA = nodeA.newClusterCoherence();
+			ClusterCoherence coherenceB = nodeB.newClusterCoherence();
+
+			nodeA.login(LoginChain.newAuthentication(EMAIL, "John", "Doe", ROLES));
+			nodeB.login(LoginChain.newAuthentication(EMAIL, "John", "Doe", ROLES));
+			coherenceA.poll();
+			coherenceB.poll();
+
+			// the updates must be later than what the first polls saw
+			Thread.sleep(5L);
+			nodeA.login(LoginChain.newAuthentication(EMAIL, "John", "Doe", NEW_ROLES));
+
+			if (poll)
+				coherenceB.poll();
+			nodeB.login(LoginChain.newAuthentication(EMAIL, "John", "Doe", ROLES));
+			Set<String> groupNames = services.getGroupNames(EMAIL);
+
+			if (steadyCalls != null) {
+				// node B notices its own change once
+				coherenceB.poll();
+				nodeB.login(LoginChain.newAuthentication(EMAIL, "John", "Doe", ROLES));
+				coherenceB.poll();
+				services.resetCounts();
+				nodeB.login(LoginChain.newAuthentication(EMAIL, "John", "Doe", ROLES));
+				steadyCalls[0] = services.getCalls();
+			}
+
+			return groupNames;
+		} finally {
+			nodeA.destroy();
+			nodeB.destroy();
+		}
+	}
+
+	/**
+	 * @param skewMillis The overlap of the polls of node B
+	 * @return The names of the groups of the user after node B logs in again
+	 */
+	private Set<String> executeLateCommit(String skewMillis) throws InterruptedException {
+		InMemoryApsServices services = new InMemoryApsServices(0L, "tenant-a");
+		StandardEnvironment environment = this.newEnvironment(skewMillis);
+		LoginChain nodeA = new LoginChain(services, environment);
+		LoginChain nodeB = new LoginChain(services, environment);
+		try {
+			ClusterCoherence coherenceB = nodeB.newClusterCoherence();
+
+			nodeA.login(LoginChain.newAuthentication(EMAIL, "John", "Doe", ROLES));
+			nodeB.login(LoginChain.newAuthentication(EMAIL, "John", "Doe", ROLES));
+			coherenceB.poll();
+
+			// the change of node A starts before another user is updated, but commits after node B polled that user
+			Thread.sleep(5L);
+			Date changeStart = new Date();
+			Thread.sleep(5L);
+			nodeA.login(LoginChain.newAuthentication("jane.doe@example.com", "Jane", "Doe", ROLES));
+			coherenceB.poll();
+			nodeA.login(LoginChain.newAuthentication(EMAIL, "John", "Doe", NEW_ROLES));
+			services.setLastUpdate(EMAIL, changeStart);
+
+			coherenceB.poll();
+			nodeB.login(LoginChain.newAuthentication(EMAIL, "John", "Doe", ROLES));
+			return services.getGroupNames(EMAIL);
+		} finally {
+			nodeA.destroy();
+			nodeB.destroy();
+		}
+	}
+
+	private StandardEnvironment newEnvironment(String skewMillis) {
+		Map<String, Object> properties = new HashMap<>();
+		properties.put("keycloak-ext.group.exclude.regex.patterns", "offline_access,uma_authorization,default-roles-.*");
+		properties.put("keycloak-ext.cluster.pollSeconds", "0");
+		if (skewMillis != null)
+			properties.put("keycloak-ext.cluster.skewMillis", skewMillis);
+		StandardEnvironment environment = new StandardEnvironment();
+		environment.getPropertySources().addFirst(new MapPropertySource("cluster", properties));
+		return environment;
+	}
+
+}
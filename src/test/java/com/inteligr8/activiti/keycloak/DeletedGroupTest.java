@@ -0,0 +1,64 @@
+/*
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.inteligr8.activiti.keycloak;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.StandardEnvironment;
+
+/**
+ * This class tests that a group deleted in APS after the group directory
+ * cached it does not break the logins referencing it.  The directory never
+ * hears of the delete; the first sync adding a user to the group must fail,
+ * reload the groups of the tenant and create the group again.
+ *
+ * @author brian@inteligr8.com
+ */
+public class DeletedGroupTest {
+
+	private static final List<String> ROLES = Arrays.asList("dept_sales_1", "dept_finance_2", "dept_legal_3");
+
+	@Test
+	public void recreatesDeletedGroup() {
+		Map<String, Object> properties = new HashMap<>();
+		properties.put("keycloak-ext.group.exclude.regex.patterns", "offline_access,uma_authorization,default-roles-.*");
+		StandardEnvironment environment = new StandardEnvironment();
+		environment.getPropertySources().addFirst(new MapPropertySource("deleted", properties));
+
+		InMemoryApsServices services = new InMemoryApsServices(0L, "tenant-a");
+		LoginChain chain = new LoginChain(services, environment);
+		try {
+			chain.login(LoginChain.newAuthentication("john.doe@example.com", "John", "Doe", ROLES));
+			Set<String> groupNames = services.getGroupNames("john.doe@example.com");
+			Assert.assertEquals("The groups should have been created: " + groupNames, ROLES.size(), groupNames.size());
+
+			Assert.assertEquals(1L, services.deleteGroups("dept_sales_1"));
+
+			chain.login(LoginChain.newAuthentication("jane.doe@example.com", "Jane", "Doe", ROLES));
+			Set<String> janeGroupNames = services.getGroupNames("jane.doe@example.com");
+			Assert.assertTrue("The deleted group should have been created again: " + janeGroupNames, janeGroupNames.equals(groupNames));
+		} finally {
+			chain.destroy();
+		}
+	}
+
+}
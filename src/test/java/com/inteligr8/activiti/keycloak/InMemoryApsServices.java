@@ -0,0 +1,627 @@
+/*
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.inteligr8.activiti.keycloak;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiFunction;
+import java.util.regex.Pattern;
+
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+
+import com.activiti.domain.idm.Group;
+import com.activiti.domain.idm.Tenant;
+import com.activiti.domain.idm.User;
+import com.activiti.service.api.GroupService;
+import com.activiti.service.api.UserService;
+import com.activiti.service.idm.TenantService;
+import com.activiti.service.license.LicenseService;
+import com.inteligr8.activiti.GroupFinderService;
+import com.inteligr8.activiti.GroupRef;
+import com.inteligr8.activiti.TenantFinderService;
+import com.inteligr8.activiti.TenantRef;
+import com.inteligr8.activiti.UserFinderService;
+import com.inteligr8.activiti.UserUpdate;
+
+/**
+ * This class provides thread-safe, in-memory stand-ins for the APS services
+ * and for the finder services of this extension, so the authentication chain
+ * can be exercised without an APS installation or database.
+ *
+ * The APS services are dynamic proxies, as their interfaces are large and
+ * only a few methods are used during a login; any other method throws an
+ * `UnsupportedOperationException`.  The finder services are subclasses that
+ * only override what a login uses.
+ *
+ * Every call that would be a database round trip parks the calling thread for
+ * the configured latency and is counted, by operation; calls that would
+ * modify the database are also counted as writes.  Entities are copied in and
+ * out, so callers never share an instance.  The users handed out are managed
+ * though, like in a Hibernate session: a change to their last update is
+ * flushed on commit, as one counted write, and discarded on rollback.  A user
+ * reference, from `UserFinderService.getUserReference()`, is free until it
+ * is changed, which first loads it with a counted round trip; like a proxy.
+ *
+ * @author brian@inteligr8.com
+ */
+public class InMemoryApsServices {
+
+	private static final Object UNSUPPORTED = new Object();
+	private static final Pattern WRITE_PREFIXES = Pattern.compile("save|create|add|delete");
+
+	private final long latencyNanos;
+	private final LongAdder calls = new LongAdder();
+	private final LongAdder writes = new LongAdder();
+	private final ConcurrentMap<String, LongAdder> callsByOperation = new ConcurrentHashMap<>();
+	private final AtomicLong sequence = new AtomicLong(1L);
+
+	private final List<Tenant> tenants = new ArrayList<>();
+	private final ConcurrentMap<Long, User> users = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Long> userIdsByEmail = new ConcurrentHashMap<>();
+	private final ConcurrentMap<Long, Group> groups = new ConcurrentHashMap<>();
+	/** the group IDs of each user ID */
+	private final ConcurrentMap<Long, Set<Long>> memberships = new ConcurrentHashMap<>();
+	/** the managed users changed in the transaction of the current thread, by ID */
+	private final ThreadLocal<Map<Long, User>> dirtyUsers = ThreadLocal.withInitial(HashMap::new);
+
+	/**
+	 * @param latencyMicros The latency of each simulated database round trip
+	 * @param tenantNames The names of the tenants; the first is the default tenant
+	 */
+	public InMemoryApsServices(long latencyMicros, String... tenantNames) {
+		this.latencyNanos = latencyMicros * 1000L;
+		for (String tenantName : tenantNames) {
+			Tenant tenant = new Tenant();
+			tenant.setId(this.sequence.getAndIncrement());
+			tenant.setName(tenantName);
+			this.tenants.add(tenant);
+		}
+	}
+
+	/**
+	 * @return The number of simulated database round trips so far
+	 */
+	public long getCalls() {
+		return this.calls.sum();
+	}
+
+	/**
+	 * @return The number of simulated database round trips so far that would modify the database
+	 */
+	public long getWrites() {
+		return this.writes.sum();
+	}
+
+	/**
+	 * @return The number of simulated database round trips so far, by operation, like `UserService.getUser`
+	 */
+	public Map<String, Long> getCallsByOperation() {
+		Map<String, Long> calls = new TreeMap<>();
+		for (Entry<String, LongAdder> operation : this.callsByOperation.entrySet())
+			calls.put(operation.getKey(), operation.getValue().sum());
+		return calls;
+	}
+
+	/**
+	 * Zeroes the calls and writes; the users and groups are kept.
+	 */
+	public void resetCounts() {
+		this.calls.reset();
+		this.writes.reset();
+		this.callsByOperation.clear();
+	}
+
+	public int getUserCount() {
+		return this.users.size();
+	}
+
+	public int getGroupCount() {
+		return this.groups.size();
+	}
+
+	/**
+	 * Deletes the groups of the name in every tenant, with their memberships,
+	 * as an administrator would in APS; the caches of the extension are not
+	 * told.
+	 *
+	 * @return The number of groups deleted
+	 */
+	public int deleteGroups(String name) {
+		int deleted = 0;
+		for (Group group : this.groups.values()) {
+			if (name.equals(group.getName()) && this.groups.remove(group.getId()) != null) {
+				for (Set<Long> groupIds : this.memberships.values())
+					groupIds.remove(group.getId());
+				deleted++;
+			}
+		}
+		return deleted;
+	}
+
+	/**
+	 * Backdates the last update of a user, as if it was committed late or by
+	 * a node with a slower clock.
+	 */
+	public void setLastUpdate(String email, Date lastUpdate) {
+		this.users.get(this.userIdsByEmail.get(email)).setLastUpdate(lastUpdate);
+	}
+
+	/**
+	 * @return The names of the groups the user is a member of; empty if the user does not exist
+	 */
+	public Set<String> getGroupNames(String email) {
+		Long userId = this.userIdsByEmail.get(email);
+		Set<String> names = new HashSet<>();
+		for (Long groupId : userId == null ? Collections.<Long>emptySet() : this.memberships.getOrDefault(userId, Collections.emptySet()))
+			names.add(this.groups.get(groupId).getName());
+		return names;
+	}
+
+	public UserService newUserService() {
+		return this.newProxy(UserService.class, (method, args) -> {
+			switch (method.getName()) {
+				case "findUserByEmailAndTenantId":
+					User user = this.findUser((String)args[0]);
+					return user != null && Objects.equals(user.getTenantId(), args[1]) ? user : null;
+				case "findUserByEmail":
+					return this.findUser((String)args[0]);
+				case "getUser":
+					return this.getUser((Long)args[0], args.length > 1 && (Boolean)args[1]);
+				case "save":
+					return this.saveUser((User)args[0]);
+				case "createNewUserFromExternalStore":
+					return this.createUser((String)args[0], (String)args[1], (String)args[2], (Long)args[3], (String)args[4], (String)args[5]);
+				default:
+					return UNSUPPORTED;
+			}
+		});
+	}
+
+	public GroupService newGroupService() {
+		return this.newProxy(GroupService.class, (method, args) -> {
+			switch (method.getName()) {
+				case "getGroup":
+					return this.getGroup((Long)args[0]);
+				case "save":
+					return this.saveGroup((Group)args[0]);
+				case "addUserToGroup":
+					// like the foreign key of the membership table
+					if (!this.groups.containsKey(((Group)args[0]).getId()))
+						throw new IllegalStateException("The group does not exist: " + ((Group)args[0]).getId());
+					this.memberships.computeIfAbsent(((User)args[1]).getId(), key -> ConcurrentHashMap.newKeySet()).add(((Group)args[0]).getId());
+					return null;
+				case "deleteUserFromGroup":
+					this.memberships.getOrDefault(((User)args[1]).getId(), Collections.emptySet()).remove(((Group)args[0]).getId());
+					return null;
+				case "createGroupFromExternalStore":
+					// the argument order of the authenticator: name, tenant, type, parent, external ID, timestamp
+					return this.createGroup((String)args[0], (Long)args[1], (Integer)args[2], (String)args[4]);
+				case "createGroup":
+					return this.createGroup((String)args[0], (Long)args[1], (Integer)args[2], null);
+				default:
+					return UNSUPPORTED;
+			}
+		});
+	}
+
+	public TenantService newTenantService() {
+		return this.newProxy(TenantService.class, (method, args) -> {
+			switch (method.getName()) {
+				case "getAllTenants":
+					List<Object[]> tenants = new ArrayList<>(this.tenants.size());
+					for (Tenant tenant : this.tenants)
+						tenants.add(new Object[] {tenant.getId(), tenant.getName()});
+					return tenants;
+				case "getTenant":
+					for (Tenant tenant : this.tenants)
+						if (tenant.getId().equals(args[0]))
+							return tenant;
+					return null;
+				case "findTenantsByName":
+					List<Tenant> namedTenants = new LinkedList<>();
+					for (Tenant tenant : this.tenants)
+						if (tenant.getName().equals(args[0]))
+							namedTenants.add(tenant);
+					return namedTenants;
+				default:
+					return UNSUPPORTED;
+			}
+		});
+	}
+
+	/**
+	 * The stand-ins are not transactional; the calls of their services are
+	 * visible at once.  Only the changes to managed users wait for a commit.
+	 */
+	public PlatformTransactionManager newTransactionManager() {
+		return new PlatformTransactionManager() {
+			@Override
+			public TransactionStatus getTransaction(TransactionDefinition definition) {
+				return new SimpleTransactionStatus();
+			}
+
+			@Override
+			public void commit(TransactionStatus status) {
+				InMemoryApsServices.this.flushUsers();
+			}
+
+			@Override
+			public void rollback(TransactionStatus status) {
+				InMemoryApsServices.this.dirtyUsers.get().clear();
+			}
+		};
+	}
+
+	public LicenseService newLicenseService() {
+		return this.newProxy(LicenseService.class, (method, args) -> {
+			if ("getDefaultTenantName".equals(method.getName()))
+				return this.tenants.isEmpty() ? null : this.tenants.get(0).getName();
+			return UNSUPPORTED;
+		});
+	}
+
+	/**
+	 * The tenants are served from memory without latency, as the real service
+	 * caches them.
+	 */
+	public TenantFinderService newTenantFinderService() {
+		TenantService tenantService = this.newTenantService();
+		LicenseService licenseService = this.newLicenseService();
+		List<TenantRef> tenantRefs = new ArrayList<>(this.tenants.size());
+		for (Object[] tenant : tenantService.getAllTenants())
+			tenantRefs.add(new TenantRef((Long)tenant[0], (String)tenant[1]));
+		String defaultTenantName = licenseService.getDefaultTenantName();
+		TenantRef defaultTenant = tenantRefs.stream().filter(tenant -> tenant.getName().equals(defaultTenantName)).findFirst().orElse(null);
+
+		return new TenantFinderService() {
+			@Override
+			public Long findTenantId() {
+				return defaultTenant == null ? null : defaultTenant.getId();
+			}
+
+			@Override
+			public TenantRef findTenantRef() {
+				return defaultTenant;
+			}
+
+			@Override
+			public Tenant findTenant() {
+				return defaultTenant == null ? null : tenantService.getTenant(defaultTenant.getId());
+			}
+
+			@Override
+			public Collection<TenantRef> getTenantRefs() {
+				return tenantRefs;
+			}
+
+			@Override
+			public void invalidate() {
+			}
+		};
+	}
+
+	public GroupFinderService newGroupFinderService() {
+		return new GroupFinderService() {
+			@Override
+			public Map<String, List<Group>> findGroupsByExternalIds(Collection<String> externalIds, Long tenantId) {
+				InMemoryApsServices.this.simulateLatency("GroupFinderService.findGroupsByExternalIds");
+				return InMemoryApsServices.this.findGroups(externalIds, tenantId, true);
+			}
+
+			@Override
+			public Map<String, List<Group>> findGroupsByNames(Collection<String> names, Long tenantId) {
+				InMemoryApsServices.this.simulateLatency("GroupFinderService.findGroupsByNames");
+				return InMemoryApsServices.this.findGroups(names, tenantId, false);
+			}
+
+			@Override
+			public List<GroupRef> findGroupRefs(Long tenantId, Date since) {
+				InMemoryApsServices.this.simulateLatency("GroupFinderService.findGroupRefs");
+				List<GroupRef> groupRefs = new LinkedList<>();
+				for (Group group : InMemoryApsServices.this.groups.values()) {
+					if (Objects.equals(group.getTenantId(), tenantId) && (since == null || !group.getLastUpdate().before(since)))
+						groupRefs.add(GroupRef.of(group));
+				}
+				return groupRefs;
+			}
+
+			@Override
+			public Group getGroupReference(Long groupId) {
+				// like a Hibernate reference, it is not checked against the database
+				Group group = InMemoryApsServices.this.copy(InMemoryApsServices.this.groups.get(groupId));
+				if (group == null) {
+					group = new Group();
+					group.setId(groupId);
+				}
+				return group;
+			}
+
+			@Override
+			public Map<Long, Date> findLastUpdates() {
+				InMemoryApsServices.this.simulateLatency("GroupFinderService.findLastUpdates");
+				Map<Long, Date> lastUpdates = new HashMap<>();
+				for (Group group : InMemoryApsServices.this.groups.values())
+					lastUpdates.merge(group.getTenantId(), group.getLastUpdate(), (date1, date2) -> date1.after(date2) ? date1 : date2);
+				return lastUpdates;
+			}
+		};
+	}
+
+	public UserFinderService newUserFinderService() {
+		return new UserFinderService() {
+			@Override
+			public User getUserReference(Long userId) {
+				return new ManagedUser(userId);
+			}
+
+			@Override
+			public Date findLastUpdate() {
+				InMemoryApsServices.this.simulateLatency("UserFinderService.findLastUpdate");
+				Date lastUpdate = null;
+				for (User user : InMemoryApsServices.this.users.values())
+					if (lastUpdate == null || user.getLastUpdate().after(lastUpdate))
+						lastUpdate = user.getLastUpdate();
+				return lastUpdate;
+			}
+
+			@Override
+			public List<UserUpdate> findUpdatesSince(Date since) {
+				InMemoryApsServices.this.simulateLatency("UserFinderService.findUpdatesSince");
+				List<UserUpdate> updates = new LinkedList<>();
+				for (User user : InMemoryApsServices.this.users.values())
+					if (since == null || !user.getLastUpdate().before(since))
+						updates.add(new UserUpdate(user.getTenantId(), user.getEmail(), user.getLastUpdate()));
+				return updates;
+			}
+		};
+	}
+
+	private User findUser(String email) {
+		Long userId = this.userIdsByEmail.get(email);
+		return userId == null ? null : this.manage(this.users.get(userId), false);
+	}
+
+	private User getUser(Long userId, boolean withGroups) {
+		return this.manage(this.users.get(userId), withGroups);
+	}
+
+	private User saveUser(User user) {
+		User savedUser = this.copy(user, false);
+		savedUser.setLastUpdate(new Date());
+		this.users.put(savedUser.getId(), savedUser);
+		return this.manage(savedUser, false);
+	}
+
+	/**
+	 * Concurrent creations of the same user all get the first user, as if
+	 * there were a unique constraint on the email address.
+	 */
+	private User createUser(String email, String firstName, String lastName, Long tenantId, String externalId, String externalSrc) {
+		User user = new User();
+		user.setId(this.sequence.getAndIncrement());
+		user.setEmail(email);
+		user.setFirstName(firstName);
+		user.setLastName(lastName);
+		user.setTenantId(tenantId);
+		user.setExternalId(externalId);
+		user.setExternalOriginalSrc(externalSrc);
+		user.setLastUpdate(new Date());
+
+		Long userId = this.userIdsByEmail.putIfAbsent(email, user.getId());
+		if (userId != null)
+			return this.manage(this.users.get(userId), false);
+
+		this.users.put(user.getId(), user);
+		return this.manage(user, false);
+	}
+
+	/**
+	 * Each changed user is one update, like a Hibernate flush.
+	 */
+	private void flushUsers() {
+		Map<Long, User> dirtyUsers = this.dirtyUsers.get();
+		for (User dirtyUser : dirtyUsers.values()) {
+			this.simulateLatency("User.update", true);
+			User user = this.users.get(dirtyUser.getId());
+			if (user != null)
+				user.setLastUpdate(dirtyUser.getLastUpdate());
+		}
+		dirtyUsers.clear();
+	}
+
+	private Group getGroup(Long groupId) {
+		Group group = this.groups.get(groupId);
+		return group == null ? null : this.copy(group);
+	}
+
+	private Group saveGroup(Group group) {
+		Group savedGroup = this.copy(group);
+		this.groups.put(savedGroup.getId(), savedGroup);
+		return this.copy(savedGroup);
+	}
+
+	private Group createGroup(String name, Long tenantId, Integer type, String externalId) {
+		Group group = new Group();
+		group.setId(this.sequence.getAndIncrement());
+		group.setName(name);
+		group.setTenantId(tenantId);
+		group.setType(type);
+		group.setExternalId(externalId);
+		group.setLastUpdate(new Date());
+		this.groups.put(group.getId(), group);
+		return this.copy(group);
+	}
+
+	private Map<String, List<Group>> findGroups(Collection<String> keys, Long tenantId, boolean byExternalId) {
+		Set<String> keySet = new HashSet<>(keys);
+		Map<String, List<Group>> found = new HashMap<>();
+		for (Group group : this.groups.values()) {
+			String key = byExternalId ? group.getExternalId() : group.getName();
+			if (keySet.contains(key) && Objects.equals(group.getTenantId(), tenantId))
+				found.computeIfAbsent(key, k -> new LinkedList<>()).add(this.copy(group));
+		}
+		return found;
+	}
+
+	private User manage(User user, boolean withGroups) {
+		if (user == null)
+			return null;
+
+		ManagedUser managedUser = new ManagedUser(user.getId());
+		managedUser.load(this.copy(user, withGroups));
+		return managedUser;
+	}
+
+	private User copy(User user, boolean withGroups) {
+		if (user == null)
+			return null;
+
+		User copy = new User();
+		copy.setId(user.getId());
+		copy.setEmail(user.getEmail());
+		copy.setFirstName(user.getFirstName());
+		copy.setLastName(user.getLastName());
+		copy.setTenantId(user.getTenantId());
+		copy.setExternalId(user.getExternalId());
+		copy.setExternalOriginalSrc(user.getExternalOriginalSrc());
+		copy.setLastUpdate(user.getLastUpdate());
+
+		if (withGroups) {
+			Set<Group> groups = new HashSet<>();
+			for (Long groupId : this.memberships.getOrDefault(user.getId(), Collections.emptySet())) {
+				Group group = this.groups.get(groupId);
+				if (group != null)
+					groups.add(this.copy(group));
+			}
+			copy.setGroups(groups);
+		}
+
+		return copy;
+	}
+
+	private Group copy(Group group) {
+		if (group == null)
+			return null;
+
+		Group copy = new Group();
+		copy.setId(group.getId());
+		copy.setName(group.getName());
+		copy.setTenantId(group.getTenantId());
+		copy.setType(group.getType());
+		copy.setExternalId(group.getExternalId());
+		copy.setLastUpdate(group.getLastUpdate());
+		return copy;
+	}
+
+	/**
+	 * @param operation The service and method, like `UserService.getUser`
+	 */
+	private void simulateLatency(String operation) {
+		this.simulateLatency(operation, WRITE_PREFIXES.matcher(operation.substring(operation.indexOf('.') + 1)).lookingAt());
+	}
+
+	private void simulateLatency(String operation, boolean write) {
+		this.calls.increment();
+		this.callsByOperation.computeIfAbsent(operation, key -> new LongAdder()).increment();
+		if (write)
+			this.writes.increment();
+		if (this.latencyNanos > 0L)
+			LockSupport.parkNanos(this.latencyNanos);
+	}
+
+	private <T> T newProxy(Class<T> type, BiFunction<Method, Object[], Object> handler) {
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, (proxy, method, args) -> {
+			if (method.getDeclaringClass() == Object.class) {
+				switch (method.getName()) {
+					case "equals":
+						return proxy == args[0];
+					case "hashCode":
+						return System.identityHashCode(proxy);
+					default:
+						return "InMemory" + type.getSimpleName();
+				}
+			}
+
+			this.simulateLatency(type.getSimpleName() + "." + method.getName());
+			Object result = handler.apply(method, args == null ? new Object[0] : args);
+			if (result == UNSUPPORTED)
+				throw new UnsupportedOperationException(type.getSimpleName() + "." + method.getName());
+			return result;
+		}));
+	}
+
+
+
+	/**
+	 * This class is a user in the persistence context.  Until it is loaded,
+	 * only its ID is known, like a proxy; changing it loads it first.  Only
+	 * changes to its last update are tracked, as the extension saves any
+	 * other change explicitly.
+	 */
+	private class ManagedUser extends User {
+
+		private boolean loaded = false;
+
+		ManagedUser(Long id) {
+			this.setId(id);
+		}
+
+		private void load(User user) {
+			super.setEmail(user.getEmail());
+			super.setFirstName(user.getFirstName());
+			super.setLastName(user.getLastName());
+			super.setTenantId(user.getTenantId());
+			super.setExternalId(user.getExternalId());
+			super.setExternalOriginalSrc(user.getExternalOriginalSrc());
+			super.setLastUpdate(user.getLastUpdate());
+			super.setGroups(user.getGroups());
+			this.loaded = true;
+		}
+
+		@Override
+		public void setLastUpdate(Date lastUpdate) {
+			if (!this.loaded) {
+				InMemoryApsServices.this.simulateLatency("User.load");
+				this.load(InMemoryApsServices.this.copy(InMemoryApsServices.this.users.get(this.getId()), false));
+			}
+
+			super.setLastUpdate(lastUpdate);
+			InMemoryApsServices.this.dirtyUsers.get().put(this.getId(), this);
+		}
+
+	}
+
+}
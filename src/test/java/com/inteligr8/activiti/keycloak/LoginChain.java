@@ -0,0 +1,234 @@
+/*
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.inteligr8.activiti.keycloak;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.keycloak.KeycloakSecurityContext;
+import org.keycloak.representations.AccessToken;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationContext;
+import org.springframework.core.env.Environment;
+import org.springframework.security.authentication.AuthenticationProvider;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import org.springframework.security.core.Authentication;
+
+import com.inteligr8.activiti.ClusterCoherence;
+import com.inteligr8.activiti.GroupDirectory;
+import com.inteligr8.activiti.TenantCacheListener;
+import com.inteligr8.activiti.TransactionExecutor;
+import com.inteligr8.activiti.auth.InterceptingAuthenticationProvider;
+import com.inteligr8.activiti.auth.PostAuthenticationExecutor;
+import com.inteligr8.activiti.metrics.MetricsService;
+import com.inteligr8.activiti.metrics.StripedMetricsRegistry;
+
+/**
+ * This class wires the authentication chain of a login, from the
+ * `InterceptingAuthenticationProvider` through the
+ * `KeycloakActivitiAppAuthenticator`, against the `InMemoryApsServices`
+ * stand-ins; as Spring would, but without an application context.
+ *
+ * @author brian@inteligr8.com
+ */
+class LoginChain {
+
+	private final Environment environment;
+	private final List<Object> beans = new ArrayList<>();
+	private final GroupDirectory groupDirectory;
+	private final KeycloakActivitiAppAuthenticator authenticator;
+	private final PostAuthenticationExecutor postAuthExecutor;
+	private final InterceptingAuthenticationProvider provider;
+
+	/**
+	 * @param environment The extension properties
+	 */
+	LoginChain(InMemoryApsServices services, Environment environment) {
+		this.environment = environment;
+
+		StripedMetricsRegistry registry = new StripedMetricsRegistry();
+		MetricsService metrics = new MetricsService();
+		this.set(metrics, "registries", Collections.singletonList(registry));
+
+		List<Object> beans = this.beans;
+		beans.add(environment);
+		beans.add(services.newUserService());
+		beans.add(services.newGroupService());
+		beans.add(services.newTenantFinderService());
+		beans.add(services.newUserFinderService());
+		beans.add(services.newGroupFinderService());
+		beans.add(services.newTransactionManager());
+		beans.add(this.configure(new TransactionExecutor(), beans));
+		beans.add(this.configure(metrics, beans));
+		this.groupDirectory = this.configure(new GroupDirectory(), beans);
+		beans.add(this.groupDirectory);
+		TenantResolutionStrategy tenantResolutionStrategy = this.configure(new ClaimTenantResolutionStrategy(), beans);
+		this.authenticator = new KeycloakActivitiAppAuthenticator();
+		this.set(this.authenticator, "tenantResolutionStrategies", Collections.singletonList(tenantResolutionStrategy));
+		this.configure(this.authenticator, beans);
+		this.postAuthExecutor = this.configure(new PostAuthenticationExecutor(), beans);
+
+		// the Keycloak provider only verifies the token, which was already done
+		AuthenticationProvider keycloakProvider = new AuthenticationProvider() {
+			@Override
+			public Authentication authenticate(Authentication auth) {
+				return auth;
+			}
+
+			@Override
+			public boolean supports(Class<?> authClass) {
+				return true;
+			}
+		};
+
+		this.provider = new InterceptingAuthenticationProvider(keycloakProvider, this.authenticator, this.postAuthExecutor, metrics);
+	}
+
+	/**
+	 * @param email The email address of the user
+	 * @param roles The realm roles of the user
+	 * @return A login, as if its token was already verified by Keycloak
+	 */
+	static Authentication newAuthentication(String email, String givenName, String familyName, Collection<String> roles) {
+		AccessToken atoken = new AccessToken();
+		atoken.setEmail(email);
+		atoken.setGivenName(givenName);
+		atoken.setFamilyName(familyName);
+
+		AccessToken.Access realmAccess = new AccessToken.Access();
+		realmAccess.addRole("offline_access", "uma_authorization");
+		realmAccess.addRole(roles.toArray(new String[roles.size()]));
+		atoken.setRealmAccess(realmAccess);
+
+		return new TestingAuthenticationToken(email, new KeycloakSecurityContext(null, atoken, null, null));
+	}
+
+	/**
+	 * Synchronizes the groups before returning, unless asynchronous post
+	 * authentication is enabled.
+	 */
+	Authentication login(Authentication auth) {
+		return this.provider.authenticate(auth);
+	}
+
+	KeycloakActivitiAppAuthenticator getAuthenticator() {
+		return this.authenticator;
+	}
+
+	/**
+	 * @return The cluster coherence of this chain, as if it were one node of a cluster; it is only polled when told to
+	 */
+	ClusterCoherence newClusterCoherence() {
+		Map<String, TenantCacheListener> listeners = new HashMap<>();
+		listeners.put("groupDirectory", this.groupDirectory);
+		listeners.put("authenticator", this.authenticator);
+
+		// only the listeners are ever looked up
+		ApplicationContext context = (ApplicationContext)Proxy.newProxyInstance(ApplicationContext.class.getClassLoader(), new Class<?>[] {ApplicationContext.class}, (proxy, method, args) -> {
+			if ("getBeansOfType".equals(method.getName()) && args[0] == TenantCacheListener.class)
+				return listeners;
+			throw new UnsupportedOperationException(method.getName());
+		});
+
+		List<Object> beans = new ArrayList<>(this.beans);
+		beans.add(context);
+		return this.configure(new ClusterCoherence(), beans);
+	}
+
+	void destroy() {
+		this.postAuthExecutor.destroy();
+		this.authenticator.destroy();
+	}
+
+	/**
+	 * This method does what Spring would: it resolves the `@Value` fields
+	 * from the environment and the `@Autowired` fields from the beans, by
+	 * type.  Collection fields are left as they are.
+	 */
+	private <T> T configure(T bean, List<Object> beans) {
+		for (Class<?> beanClass = bean.getClass(); beanClass != Object.class; beanClass = beanClass.getSuperclass()) {
+			for (Field field : beanClass.getDeclaredFields()) {
+				Value value = field.getAnnotation(Value.class);
+				if (value != null) {
+					String resolved = this.environment.resolvePlaceholders(value.value());
+					this.set(bean, field, this.convert("#{null}".equals(resolved) ? null : resolved, field.getType()));
+				} else if (field.isAnnotationPresent(Autowired.class) && !Collection.class.isAssignableFrom(field.getType())) {
+					for (Object dependency : beans) {
+						if (field.getType().isInstance(dependency)) {
+							this.set(bean, field, dependency);
+							break;
+						}
+					}
+				}
+			}
+		}
+
+		if (bean instanceof InitializingBean) {
+			try {
+				((InitializingBean)bean).afterPropertiesSet();
+			} catch (Exception e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		return bean;
+	}
+
+	private Object convert(String value, Class<?> type) {
+		if (value == null || type == String.class) {
+			return value;
+		} else if (type == boolean.class || type == Boolean.class) {
+			return Boolean.valueOf(value);
+		} else if (type == int.class || type == Integer.class) {
+			return Integer.valueOf(value);
+		} else if (type == long.class || type == Long.class) {
+			return Long.valueOf(value);
+		} else {
+			throw new IllegalArgumentException("Unsupported property type: " + type);
+		}
+	}
+
+	private void set(Object bean, String fieldName, Object value) {
+		for (Class<?> beanClass = bean.getClass(); beanClass != Object.class; beanClass = beanClass.getSuperclass()) {
+			try {
+				this.set(bean, beanClass.getDeclaredField(fieldName), value);
+				return;
+			} catch (NoSuchFieldException nsfe) {
+				// try the superclass
+			}
+		}
+		throw new IllegalArgumentException("No such field: " + fieldName);
+	}
+
+	private void set(Object bean, Field field, Object value) {
+		if (value == null && field.getType().isPrimitive())
+			return;
+
+		try {
+			field.setAccessible(true);
+			field.set(bean, value);
+		} catch (IllegalAccessException iae) {
+			throw new IllegalStateException(iae);
+		}
+	}
+
+}
@@ -0,0 +1,206 @@
+/*
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.inteligr8.activiti.keycloak;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.security.core.Authentication;
+
+import com.activiti.domain.idm.Group;
+
+/**
+ * This class checks the number of simulated database round trips and writes
+ * of a single login against a budget, for each of the scenarios below.  Each
+ * scenario is executed against new `InMemoryApsServices` stand-ins; its
+ * setup is not counted.  The default Keycloak roles are excluded, as they
+ * would be in practice.
+ *
+ * - `steady`: an existing user logs in again with unchanged roles
+ * - `steady, uncached`: the same, with the sync and identity caches disabled
+ * - `new user`: the first login of a user; the groups already exist
+ * - `new roles`: an existing user logs in with roles no group exists for yet
+ * - `new roles, cached memberships`: the same, with the memberships of the
+ *   user cached by an earlier login that changed nothing
+ * - `removed roles`: an existing user logs in without some of their roles
+ * - `internal groups, synced`: an existing user logs in with roles matching
+ *   internal groups, with `syncInternalGroups` enabled
+ * - `internal groups, not synced`: the same, with `syncInternalGroups` disabled
+ * - `multi-tenant, new user` and `multi-tenant, steady`: the same as `new user`
+ *   and `steady`, with the tenant resolved from the email domain
+ *
+ * A login that changes the memberships of a user also updates the user's
+ * `lastUpdate`, for the other nodes of a cluster; that is one more write,
+ * flushed on commit.  When the user was not loaded with their groups, the
+ * reference must also be loaded before it is changed; one more call.
+ *
+ * The budgets are exact: they are what the login path needs today.  When a
+ * change needs fewer, lower the budget; when it needs more, it must be
+ * justified.  Any login over its budget fails the test, listing the calls it
+ * made by operation.
+ *
+ * @author brian@inteligr8.com
+ */
+public class LoginQueryBudgetTest {
+
+	private static final List<String> ROLES = Arrays.asList("dept_sales_1", "dept_finance_2", "dept_legal_3", "dept_ops_4", "dept_hr_5");
+	private static final List<String> NEW_ROLES = Arrays.asList("dept_it_6", "dept_audit_7");
+	private static final int REMOVED_ROLES = 2;
+	private static final String EXCLUDES = "offline_access,uma_authorization,default-roles-.*";
+
+	@Test
+	public void loginsWithinBudget() {
+		int roles = ROLES.size();
+		int newRoles = NEW_ROLES.size();
+		Map<String, String> tenantClaim = new HashMap<>();
+		tenantClaim.put("keycloak-ext.tenant.claim", ClaimTenantResolutionStrategy.CLAIM_EMAIL_DOMAIN);
+		tenantClaim.put("keycloak-ext.tenant.claim.mapping", "a.example.com=tenant-a,b.example.com=tenant-b");
+		Map<String, String> uncached = new HashMap<>();
+		uncached.put("keycloak-ext.syncCache.enabled", "false");
+		uncached.put("keycloak-ext.userCache.identity.ttlSeconds", "0");
+
+		List<Scenario> scenarios = new ArrayList<>();
+		// nothing changed and everything is cached
+		scenarios.add(new Scenario("steady", Collections.emptyMap(), 0, 0, (services, chain) -> {
+			chain.login(LoginChain.newAuthentication("john.doe@example.com", "John", "Doe", ROLES));
+			return LoginChain.newAuthentication("john.doe@example.com", "John", "Doe", ROLES);
+		}));
+		// find the user; load their groups
+		scenarios.add(new Scenario("steady, uncached", uncached, 2, 0, (services, chain) -> {
+			chain.login(LoginChain.newAuthentication("john.doe@example.com", "John", "Doe", ROLES));
+			return LoginChain.newAuthentication("john.doe@example.com", "John", "Doe", ROLES);
+		}));
+		// find the user in and out of the tenant; create them; clear their default groups; load their groups; add them to each group; update them
+		scenarios.add(new Scenario("new user", Collections.emptyMap(), 6 + roles, 2 + roles, (services, chain) -> {
+			chain.login(LoginChain.newAuthentication("john.doe@example.com", "John", "Doe", ROLES));
+			return LoginChain.newAuthentication("jane.doe@example.com", "Jane", "Doe", ROLES);
+		}));
+		// load their groups; create each new group; add them to each new group; update them
+		scenarios.add(new Scenario("new roles", Collections.emptyMap(), 2 + 2 * newRoles, 1 + 2 * newRoles, (services, chain) -> {
+			chain.login(LoginChain.newAuthentication("john.doe@example.com", "John", "Doe", ROLES));
+			return LoginChain.newAuthentication("john.doe@example.com", "John", "Doe", concat(ROLES, NEW_ROLES));
+		}));
+		// create each new group; add them to each new group; load and update their reference
+		scenarios.add(new Scenario("new roles, cached memberships", Collections.singletonMap("keycloak-ext.syncCache.enabled", "false"), 2 + 2 * newRoles, 1 + 2 * newRoles, (services, chain) -> {
+			chain.login(LoginChain.newAuthentication("john.doe@example.com", "John", "Doe", ROLES));
+			chain.login(LoginChain.newAuthentication("john.doe@example.com", "John", "Doe", ROLES));
+			return LoginChain.newAuthentication("john.doe@example.com", "John", "Doe", concat(ROLES, NEW_ROLES));
+		}));
+		// load their groups; remove them from each group; update them
+		scenarios.add(new Scenario("removed roles", Collections.emptyMap(), 2 + REMOVED_ROLES, 1 + REMOVED_ROLES, (services, chain) -> {
+			chain.login(LoginChain.newAuthentication("john.doe@example.com", "John", "Doe", ROLES));
+			return LoginChain.newAuthentication("john.doe@example.com", "John", "Doe", ROLES.subList(0, roles - REMOVED_ROLES));
+		}));
+		// load their groups; load, register and add them to each internal group; update them
+		scenarios.add(new Scenario("internal groups, synced", Collections.singletonMap("keycloak-ext.syncInternalGroups", "true"), 2 + 3 * newRoles, 1 + 2 * newRoles, (services, chain) -> {
+			createInternalGroups(services, NEW_ROLES);
+			chain.login(LoginChain.newAuthentication("john.doe@example.com", "John", "Doe", ROLES));
+			return LoginChain.newAuthentication("john.doe@example.com", "John", "Doe", concat(ROLES, NEW_ROLES));
+		}));
+		// load their groups; create each new group beside the internal group; add them to each new group; update them
+		scenarios.add(new Scenario("internal groups, not synced", Collections.singletonMap("keycloak-ext.syncInternalGroups", "false"), 2 + 2 * newRoles, 1 + 2 * newRoles, (services, chain) -> {
+			createInternalGroups(services, NEW_ROLES);
+			chain.login(LoginChain.newAuthentication("john.doe@example.com", "John", "Doe", ROLES));
+			return LoginChain.newAuthentication("john.doe@example.com", "John", "Doe", concat(ROLES, NEW_ROLES));
+		}));
+		// the same as a new user; resolving the tenant is free
+		scenarios.add(new Scenario("multi-tenant, new user", tenantClaim, 6 + roles, 2 + roles, (services, chain) -> {
+			chain.login(LoginChain.newAuthentication("john.doe@b.example.com", "John", "Doe", ROLES));
+			return LoginChain.newAuthentication("jane.doe@b.example.com", "Jane", "Doe", ROLES);
+		}));
+		// the same as steady
+		scenarios.add(new Scenario("multi-tenant, steady", tenantClaim, 0, 0, (services, chain) -> {
+			chain.login(LoginChain.newAuthentication("john.doe@b.example.com", "John", "Doe", ROLES));
+			return LoginChain.newAuthentication("john.doe@b.example.com", "John", "Doe", ROLES);
+		}));
+
+		List<String> failures = new ArrayList<>();
+		for (Scenario scenario : scenarios) {
+			InMemoryApsServices services = new InMemoryApsServices(0L, "tenant-a", "tenant-b");
+			long[] counts = scenario.execute(services);
+			if (counts[0] > scenario.callBudget || counts[1] > scenario.writeBudget)
+				failures.add(String.format("%s: %d/%d calls, %d/%d writes %s", scenario.name,
+						counts[0], scenario.callBudget, counts[1], scenario.writeBudget, services.getCallsByOperation()));
+		}
+
+		Assert.assertTrue("Logins over their query budget: " + failures, failures.isEmpty());
+	}
+
+	private static void createInternalGroups(InMemoryApsServices services, List<String> names) {
+		Long tenantId = services.newTenantFinderService().findTenantId();
+		for (String name : names)
+			services.newGroupService().createGroup(name, tenantId, Group.TYPE_FUNCTIONAL_GROUP, null);
+	}
+
+	private static List<String> concat(List<String> list1, List<String> list2) {
+		List<String> list = new ArrayList<>(list1);
+		list.addAll(list2);
+		return list;
+	}
+
+
+
+	private static class Scenario {
+
+		private final String name;
+		private final Map<String, String> properties;
+		private final long callBudget;
+		private final long writeBudget;
+		private final BiFunction<InMemoryApsServices, LoginChain, Authentication> setup;
+
+		/**
+		 * @param properties The extension properties of the scenario
+		 * @param setup Prepares the services and returns the login to count
+		 */
+		Scenario(String name, Map<String, String> properties, long callBudget, long writeBudget, BiFunction<InMemoryApsServices, LoginChain, Authentication> setup) {
+			this.name = name;
+			this.properties = properties;
+			this.callBudget = callBudget;
+			this.writeBudget = writeBudget;
+			this.setup = setup;
+		}
+
+		/**
+		 * @return The calls and writes of the login
+		 */
+		long[] execute(InMemoryApsServices services) {
+			Map<String, Object> properties = new HashMap<>(this.properties);
+			properties.putIfAbsent("keycloak-ext.group.exclude.regex.patterns", EXCLUDES);
+			StandardEnvironment environment = new StandardEnvironment();
+			environment.getPropertySources().addFirst(new MapPropertySource(this.name, properties));
+
+			LoginChain chain = new LoginChain(services, environment);
+			try {
+				Authentication auth = this.setup.apply(services, chain);
+				services.resetCounts();
+				chain.login(auth);
+				return new long[] {services.getCalls(), services.getWrites()};
+			} finally {
+				chain.destroy();
+			}
+		}
+
+	}
+
+}